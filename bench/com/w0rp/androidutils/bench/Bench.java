@@ -0,0 +1,76 @@
+package com.w0rp.androidutils.bench;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+/**
+ * Timing helpers shared by the benchmarks.
+ */
+final class Bench {
+    /**
+     * A piece of work to time.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private Bench() { }
+
+    /**
+     * Run a task a number of times after warming it up.
+     *
+     * @return The median time for one run in nanoseconds.
+     */
+    static long median(int warmups, int runs, Task task) throws Exception {
+        for (int i = 0; i < warmups; ++i) {
+            task.run();
+        }
+
+        long[] times = new long[runs];
+
+        for (int i = 0; i < runs; ++i) {
+            long start = System.nanoTime();
+            task.run();
+            times[i] = System.nanoTime() - start;
+        }
+
+        Arrays.sort(times);
+
+        return times[runs / 2];
+    }
+
+    /**
+     * @return The number of bytes allocated by the current thread so far,
+     *     or -1 if the VM can't tell us, as on Android.
+     */
+    static long allocatedBytes() {
+        try {
+            Object bean = Class.forName(
+                "java.lang.management.ManagementFactory")
+                .getMethod("getThreadMXBean").invoke(null);
+            Method method = Class.forName("com.sun.management.ThreadMXBean")
+                .getMethod("getThreadAllocatedBytes", long.class);
+
+            return (Long) method.invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Run a task once more, measuring what it allocates.
+     *
+     * @return The bytes allocated, or -1 if that can't be measured.
+     */
+    static long allocation(Task task) throws Exception {
+        long before = allocatedBytes();
+        task.run();
+        long after = allocatedBytes();
+
+        return before < 0 || after < 0 ? -1 : after - before;
+    }
+
+    static String millis(long nanos) {
+        return String.format("%.2f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,257 @@
+package com.w0rp.androidutils.bench;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.w0rp.androidutils.JSON;
+
+/**
+ * Compares binding JSONObjects to objects with JSON.Binder against
+ * extracting the same values by hand, as a parseData() method would, and
+ * against a reflective mapper which looks up the fields for every object.
+ * The JSON is parsed before timing starts, so only binding is measured.
+ */
+public class BinderBenchmark {
+    private static final int OBJECT_COUNT = 10000;
+
+    static class Author {
+        String name;
+        long karma;
+    }
+
+    static class Comment {
+        int id;
+        String body;
+        Author author;
+    }
+
+    static class Post {
+        int id;
+        String title;
+        String url;
+        double score;
+        boolean nsfw;
+        Author author;
+        List<String> tags;
+        List<Comment> comments;
+    }
+
+    private static JSONObject author(int i) throws Exception {
+        return new JSONObject()
+            .put("name", "user" + i)
+            .put("karma", i * 1000L);
+    }
+
+    private static JSONArray posts() throws Exception {
+        JSONArray arr = new JSONArray();
+
+        for (int i = 0; i < OBJECT_COUNT; ++i) {
+            JSONArray comments = new JSONArray();
+
+            for (int j = 0; j < 2; ++j) {
+                comments.put(new JSONObject()
+                    .put("id", i * 10 + j)
+                    .put("body", "Comment " + j + " on post " + i)
+                    .put("author", author(j)));
+            }
+
+            arr.put(new JSONObject()
+                .put("id", i)
+                .put("title", "Post number " + i)
+                .put("url", "http://example.com/posts/" + i)
+                .put("score", i / 3.0)
+                .put("nsfw", i % 7 == 0)
+                .put("author", author(i))
+                .put("tags", new JSONArray().put("news").put("tag" + i % 10))
+                .put("comments", comments));
+        }
+
+        return arr;
+    }
+
+    private static Author handAuthor(JSONObject obj) {
+        Author author = new Author();
+        author.name = JSON.optString(obj, "name");
+        author.karma = obj.optLong("karma");
+
+        return author;
+    }
+
+    /**
+     * Extract a Post by hand, as parseData() implementations do.
+     */
+    private static Post hand(JSONObject obj) {
+        Post post = new Post();
+        post.id = obj.optInt("id");
+        post.title = JSON.optString(obj, "title");
+        post.url = JSON.optString(obj, "url");
+        post.score = obj.optDouble("score", 0);
+        post.nsfw = obj.optBoolean("nsfw");
+
+        JSONObject author = obj.optJSONObject("author");
+        post.author = author != null ? handAuthor(author) : null;
+
+        post.tags = new ArrayList<String>();
+
+        for (Object tag : JSON.iter(obj, "tags")) {
+            if (tag instanceof String) {
+                post.tags.add((String) tag);
+            }
+        }
+
+        post.comments = new ArrayList<Comment>();
+
+        for (JSONObject item : JSON.objIter(obj, "comments")) {
+            Comment comment = new Comment();
+            comment.id = item.optInt("id");
+            comment.body = JSON.optString(item, "body");
+
+            JSONObject commentAuthor = item.optJSONObject("author");
+            comment.author = commentAuthor != null
+                ? handAuthor(commentAuthor)
+                : null;
+
+            post.comments.add(comment);
+        }
+
+        return post;
+    }
+
+    /**
+     * Set fields by reflection, looking them up again for every object,
+     * for the types used here only.
+     */
+    private static <T> T naive(JSONObject obj, Class<T> cls)
+    throws Exception {
+        T target = cls.getDeclaredConstructor().newInstance();
+
+        for (Field field : cls.getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) {
+                continue;
+            }
+
+            field.setAccessible(true);
+
+            String key = field.getName();
+            Class<?> type = field.getType();
+
+            if (type == String.class) {
+                field.set(target, obj.optString(key));
+            } else if (type == int.class) {
+                field.setInt(target, obj.optInt(key));
+            } else if (type == long.class) {
+                field.setLong(target, obj.optLong(key));
+            } else if (type == double.class) {
+                field.setDouble(target, obj.optDouble(key, 0));
+            } else if (type == boolean.class) {
+                field.setBoolean(target, obj.optBoolean(key));
+            } else if (type == List.class) {
+                Class<?> element = (Class<?>) ((ParameterizedType)
+                    field.getGenericType()).getActualTypeArguments()[0];
+                List<Object> list = new ArrayList<Object>();
+
+                for (Object item : JSON.iter(obj, key)) {
+                    if (element == String.class) {
+                        list.add(item);
+                    } else if (item instanceof JSONObject) {
+                        list.add(naive((JSONObject) item, element));
+                    }
+                }
+
+                field.set(target, list);
+            } else {
+                JSONObject value = obj.optJSONObject(key);
+
+                field.set(target, value != null ? naive(value, type) : null);
+            }
+        }
+
+        return target;
+    }
+
+    private static String describe(Post post) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(post.id).append(post.title).append(post.url)
+            .append(post.score).append(post.nsfw).append(post.author.name)
+            .append(post.author.karma).append(post.tags);
+
+        for (Comment comment : post.comments) {
+            sb.append(comment.id).append(comment.body)
+                .append(comment.author.name).append(comment.author.karma);
+        }
+
+        return sb.toString();
+    }
+
+    public static void main(String[] args) throws Exception {
+        final List<JSONObject> objList = new ArrayList<JSONObject>();
+
+        for (JSONObject obj : JSON.objIter(posts())) {
+            objList.add(obj);
+        }
+
+        // Check every method produces the same objects.
+        for (JSONObject obj : objList) {
+            String expected = describe(hand(obj));
+
+            if (!expected.equals(describe(JSON.bind(obj, Post.class)))
+            || !expected.equals(describe(naive(obj, Post.class)))) {
+                throw new IllegalStateException("Results differ: " + obj);
+            }
+        }
+
+        Bench.Task[] tasks = new Bench.Task[] {
+            new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    for (JSONObject obj : objList) {
+                        hand(obj);
+                    }
+                }
+            },
+            new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    JSON.Binder<Post> binder = JSON.binder(Post.class);
+
+                    for (JSONObject obj : objList) {
+                        binder.bind(obj);
+                    }
+                }
+            },
+            new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    for (JSONObject obj : objList) {
+                        naive(obj, Post.class);
+                    }
+                }
+            },
+        };
+        String[] names = new String[] {
+            "by hand",
+            "JSON.Binder",
+            "reflection per object",
+        };
+
+        System.out.println("Binding " + OBJECT_COUNT + " posts with 2"
+            + " comments each");
+        System.out.println(String.format("%-24s %12s %12s %14s",
+            "method", "median", "objects/s", "bytes/object"));
+
+        for (int i = 0; i < tasks.length; ++i) {
+            long nanos = Bench.median(10, 31, tasks[i]);
+            long bytes = Bench.allocation(tasks[i]);
+
+            System.out.println(String.format("%-24s %12s %12.0f %14d",
+                names[i], Bench.millis(nanos),
+                OBJECT_COUNT / (nanos / 1e9), bytes / OBJECT_COUNT));
+        }
+    }
+}
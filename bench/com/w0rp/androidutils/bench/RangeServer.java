@@ -0,0 +1,172 @@
+package com.w0rp.androidutils.bench;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.w0rp.androidutils.IO;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface serving one file,
+ * with support for HEAD and byte ranges. Responses can be delayed and each
+ * connection can be throttled, to stand in for a link with high latency,
+ * where a single connection can't use all of the bandwidth.
+ */
+final class RangeServer implements Closeable {
+    private static final String ETAG = "\"bench\"";
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final ServerSocket serverSocket;
+    private final byte[] data;
+    private final long latency;
+    private final long bytesPerSecond;
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+
+    /**
+     * @param data The file to serve.
+     * @param latency The delay in milliseconds before each response.
+     * @param bytesPerSecond The speed of each connection, or 0 for as fast
+     *     as possible.
+     */
+    RangeServer(byte[] data, long latency, long bytesPerSecond)
+    throws IOException {
+        this.serverSocket = new ServerSocket(0, 50,
+            InetAddress.getByName("127.0.0.1"));
+        this.data = data;
+        this.latency = latency;
+        this.bytesPerSecond = bytesPerSecond;
+
+        pool.execute(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        });
+    }
+
+    URI getURI() {
+        return URI.create("http://127.0.0.1:" + serverSocket.getLocalPort()
+            + "/file");
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket socket = serverSocket.accept();
+
+                pool.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            serve(socket);
+                        } catch (IOException e) {
+                            // The client dropped the connection.
+                        } finally {
+                            IO.close(socket);
+                        }
+                    }
+                });
+            } catch (IOException e) {
+                // The server was closed.
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+            socket.getInputStream(), "ISO-8859-1"));
+        OutputStream out = socket.getOutputStream();
+        String requestLine;
+
+        // Serve requests on the connection until the client closes it.
+        while ((requestLine = in.readLine()) != null) {
+            String range = null;
+            String line;
+
+            while ((line = in.readLine()) != null && line.length() > 0) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring(6).trim();
+                }
+            }
+
+            int start = 0;
+            int end = data.length - 1;
+            String status = "200 OK";
+            StringBuilder headers = new StringBuilder();
+
+            if (range != null && range.startsWith("bytes=")) {
+                String[] parts = range.substring(6).split("-");
+
+                start = Integer.parseInt(parts[0]);
+
+                if (parts.length > 1 && parts[1].length() > 0) {
+                    end = Math.min(end, Integer.parseInt(parts[1]));
+                }
+
+                status = "206 Partial Content";
+                headers.append("Content-Range: bytes ").append(start)
+                    .append('-').append(end).append('/').append(data.length)
+                    .append("\r\n");
+            }
+
+            headers.append("Content-Length: ").append(end - start + 1)
+                .append("\r\nAccept-Ranges: bytes\r\nETag: ").append(ETAG)
+                .append("\r\nContent-Type: application/octet-stream\r\n\r\n");
+
+            sleep(latency);
+            out.write(("HTTP/1.1 " + status + "\r\n" + headers)
+                .getBytes("ISO-8859-1"));
+
+            if (requestLine.startsWith("HEAD ")) {
+                out.flush();
+            } else {
+                write(out, start, end + 1);
+            }
+        }
+    }
+
+    private void write(OutputStream out, int start, int end)
+    throws IOException {
+        long began = System.nanoTime();
+
+        for (int position = start; position < end; position += CHUNK_SIZE) {
+            int len = Math.min(CHUNK_SIZE, end - position);
+
+            out.write(data, position, len);
+            out.flush();
+
+            if (bytesPerSecond > 0) {
+                // Hold the connection to its speed from the first byte.
+                long due = (position + len - start) * 1000L / bytesPerSecond;
+
+                sleep(due - (System.nanoTime() - began) / 1000000);
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+        }
+    }
+
+    @Override
+    public void close() {
+        IO.close(serverSocket);
+        pool.shutdownNow();
+    }
+}
@@ -0,0 +1,155 @@
+package com.w0rp.androidutils.bench;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.w0rp.androidutils.ConcurrentFileRotator;
+import com.w0rp.androidutils.FileRotator;
+
+/**
+ * Compares the throughput of FileRotator and ConcurrentFileRotator with
+ * several threads using files at once. Each thread touches files picked at
+ * random, and adds them with add(File, long) when they aren't known, as a
+ * cache would. The rotators hold 80% of the files, so about one use in
+ * five adds a file and evicts another.
+ *
+ * The files don't exist, so the only disk work is the failed delete for
+ * each eviction, which both rotators do.
+ */
+public class RotatorConcurrencyBenchmark {
+    private static final int FILE_COUNT = 10000;
+    private static final long FILE_SIZE = 1000;
+    private static final int USES = 400000;
+    private static final int[] THREAD_COUNTS = new int[] {1, 2, 4, 8};
+    // The number of uses which had to add a file in the last run.
+    private static final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * The methods the benchmark calls, for either rotator.
+     */
+    private interface Rotator {
+        boolean touch(File file);
+
+        void add(File file, long size);
+    }
+
+    private static Rotator single() {
+        final FileRotator rotator = new FileRotator(
+            FILE_COUNT * FILE_SIZE * 8 / 10, null, FileRotator.Policy.LRU);
+
+        return new Rotator() {
+            @Override
+            public boolean touch(File file) {
+                return rotator.touch(file);
+            }
+
+            @Override
+            public void add(File file, long size) {
+                rotator.add(file, size);
+            }
+        };
+    }
+
+    private static Rotator concurrent() {
+        final ConcurrentFileRotator rotator = new ConcurrentFileRotator(
+            FILE_COUNT * FILE_SIZE * 8 / 10, FileRotator.Policy.LRU);
+
+        return new Rotator() {
+            @Override
+            public boolean touch(File file) {
+                return rotator.touch(file);
+            }
+
+            @Override
+            public void add(File file, long size) {
+                rotator.add(file, size);
+            }
+        };
+    }
+
+    /**
+     * Split the uses over a number of threads.
+     *
+     * @return The time for every thread to finish in nanoseconds.
+     */
+    private static long run(final Rotator rotator, final File[] files,
+    int threadCount) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threadCount);
+        final int uses = USES / threadCount;
+
+        missCount.set(0);
+
+        for (int i = 0; i < threadCount; ++i) {
+            final Random random = new Random(i);
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long misses = 0;
+
+                    try {
+                        start.await();
+
+                        for (int j = 0; j < uses; ++j) {
+                            File file = files[random.nextInt(files.length)];
+
+                            if (!rotator.touch(file)) {
+                                rotator.add(file, FILE_SIZE);
+                                ++misses;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        // Stop early.
+                    } finally {
+                        missCount.addAndGet(misses);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+
+        long began = System.nanoTime();
+        start.countDown();
+        done.await();
+
+        return System.nanoTime() - began;
+    }
+
+    public static void main(String[] args) throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"),
+            "rotator-bench-missing");
+        final File[] files = new File[FILE_COUNT];
+
+        for (int i = 0; i < FILE_COUNT; ++i) {
+            files[i] = new File(directory, Integer.toString(i));
+        }
+
+        System.out.println(USES + " uses of " + FILE_COUNT + " files on "
+            + Runtime.getRuntime().availableProcessors() + " CPUs");
+        System.out.println(String.format("%-8s %-22s %10s %10s %9s",
+            "threads", "rotator", "median", "uses/s", "hit ratio"));
+
+        for (final int threadCount : THREAD_COUNTS) {
+            for (int i = 0; i < 2; ++i) {
+                final boolean sharded = i == 1;
+                long nanos = Bench.median(2, 5, new Bench.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        RotatorConcurrencyBenchmark.run(
+                            sharded ? concurrent() : single(), files,
+                            threadCount);
+                    }
+                });
+
+                System.out.println(String.format(
+                    "%-8d %-22s %10s %10.0f %8.1f%%", threadCount,
+                    sharded ? "ConcurrentFileRotator" : "FileRotator",
+                    Bench.millis(nanos), USES / (nanos / 1e9),
+                    100 - missCount.get() * 100.0 / USES));
+            }
+        }
+    }
+}
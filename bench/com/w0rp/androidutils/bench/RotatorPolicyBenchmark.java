@@ -0,0 +1,193 @@
+package com.w0rp.androidutils.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.w0rp.androidutils.FileRotator;
+
+/**
+ * Replays traces of file uses through FileRotator with each policy, and
+ * reports the hit ratios. Every use calls touch(), and adds the file with
+ * add(File, long) when touch() returns false, as a cache would.
+ *
+ * Two synthetic traces are replayed: uses of a set of files with a Zipf
+ * distribution, and the same with scans through files which are only used
+ * once mixed in. A recorded trace can be given as a file with a name and
+ * a size in bytes on each line, separated by whitespace.
+ *
+ * Capacities are given as a share of the total size of the files used
+ * more than once. The files don't exist, so nothing is read or written on
+ * disk.
+ */
+public class RotatorPolicyBenchmark {
+    private static final int FILE_COUNT = 5000;
+    private static final int TRACE_LENGTH = 500000;
+    private static final double ZIPF_EXPONENT = 0.9;
+    private static final double[] CAPACITIES = new double[] {0.05, 0.1, 0.2};
+
+    private static final class Trace {
+        final String title;
+        final File[] files;
+        final long[] sizes;
+        // The total size of the files used more than once.
+        final long reusedSize;
+
+        Trace(String title, List<File> fileList, List<Long> sizeList) {
+            this.title = title;
+            this.files = fileList.toArray(new File[fileList.size()]);
+            this.sizes = new long[sizeList.size()];
+
+            HashMap<String, Integer> useMap = new HashMap<String, Integer>();
+            long total = 0;
+
+            for (int i = 0; i < sizes.length; ++i) {
+                sizes[i] = sizeList.get(i);
+
+                Integer uses = useMap.get(files[i].getPath());
+
+                if (uses != null && uses == 1) {
+                    // Count each file once, on its second use.
+                    total += sizes[i];
+                }
+
+                useMap.put(files[i].getPath(), uses != null ? uses + 1 : 1);
+            }
+
+            this.reusedSize = total;
+        }
+    }
+
+    /**
+     * @return A size between 4KiB and 64KiB for a file, always the same
+     *     for the same file.
+     */
+    private static long size(int id) {
+        return 4096 + new Random(id).nextInt(60 * 1024);
+    }
+
+    private static File file(int id) {
+        return new File("/bench/" + id);
+    }
+
+    /**
+     * @param scanChance The chance of a scan starting before each use.
+     */
+    private static Trace synthetic(String title, double scanChance,
+    long seed) {
+        double[] cdf = new double[FILE_COUNT];
+        double sum = 0;
+
+        for (int i = 0; i < FILE_COUNT; ++i) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cdf[i] = sum;
+        }
+
+        Random random = new Random(seed);
+        List<File> fileList = new ArrayList<File>(TRACE_LENGTH);
+        List<Long> sizeList = new ArrayList<Long>(TRACE_LENGTH);
+        int nextScanId = FILE_COUNT;
+
+        while (fileList.size() < TRACE_LENGTH) {
+            if (random.nextDouble() < scanChance) {
+                // Scan through 100 files which are never used again.
+                for (int i = 0; i < 100; ++i) {
+                    fileList.add(file(nextScanId));
+                    sizeList.add(size(nextScanId));
+                    ++nextScanId;
+                }
+            } else {
+                int index = Arrays.binarySearch(cdf,
+                    random.nextDouble() * sum);
+                int id = index >= 0 ? index : -index - 1;
+
+                fileList.add(file(id));
+                sizeList.add(size(id));
+            }
+        }
+
+        return new Trace(title, fileList, sizeList);
+    }
+
+    private static Trace recorded(String path) throws IOException {
+        List<File> fileList = new ArrayList<File>();
+        List<Long> sizeList = new ArrayList<Long>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+
+        try {
+            String line;
+
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.trim().split("\\s+");
+
+                if (parts.length == 2) {
+                    fileList.add(new File("/bench/", parts[0]));
+                    sizeList.add(Long.parseLong(parts[1]));
+                }
+            }
+        } finally {
+            in.close();
+        }
+
+        return new Trace(path, fileList, sizeList);
+    }
+
+    private static FileRotator replay(Trace trace, long maxSize,
+    FileRotator.Policy policy) {
+        FileRotator rotator = new FileRotator(maxSize, null, policy);
+
+        for (int i = 0; i < trace.files.length; ++i) {
+            if (!rotator.touch(trace.files[i])) {
+                rotator.add(trace.files[i], trace.sizes[i]);
+            }
+        }
+
+        return rotator;
+    }
+
+    private static void run(Trace trace) {
+        System.out.println(trace.title + ", " + trace.files.length
+            + " uses, " + trace.reusedSize / 1024
+            + " KiB of files used more than once");
+        System.out.println(String.format("%-10s %-14s %10s %12s",
+            "capacity", "policy", "hit ratio", "uses/s"));
+
+        for (double capacity : CAPACITIES) {
+            long maxSize = (long) (trace.reusedSize * capacity);
+
+            for (FileRotator.Policy policy : FileRotator.Policy.values()) {
+                long start = System.nanoTime();
+                FileRotator rotator = replay(trace, maxSize, policy);
+                long nanos = System.nanoTime() - start;
+                double hits = rotator.getHitCount();
+
+                System.out.println(String.format("%-10s %-14s %9.1f%% %12.0f",
+                    (int) (capacity * 100) + "%", policy,
+                    hits * 100 / (hits + rotator.getMissCount()),
+                    trace.files.length / (nanos / 1e9)));
+            }
+        }
+
+        System.out.println();
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0) {
+            run(recorded(args[0]));
+            return;
+        }
+
+        // Warm up, so the first rows aren't slower than the rest.
+        replay(synthetic("warmup", 0, 0), 1024 * 1024,
+            FileRotator.Policy.SEGMENTED_LRU);
+
+        run(synthetic("Zipf", 0, 1));
+        run(synthetic("Zipf with one-off scans", 0.005, 2));
+    }
+}
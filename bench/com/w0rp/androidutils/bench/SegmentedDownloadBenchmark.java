@@ -0,0 +1,103 @@
+package com.w0rp.androidutils.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.HttpClient;
+
+import com.w0rp.androidutils.FileDownloader;
+import com.w0rp.androidutils.PooledHTTPClient;
+import com.w0rp.androidutils.SegmentedDownloader;
+
+/**
+ * Compares a single stream download with SegmentedDownloader, against a
+ * local server which delays each response and throttles each connection,
+ * and against the same server without limits.
+ */
+public class SegmentedDownloadBenchmark {
+    private static final int SIZE = 4 * 1024 * 1024;
+    private static final int[] SEGMENT_COUNTS = new int[] {2, 4, 8};
+
+    private static void check(byte[] data, File file) throws IOException {
+        byte[] read = new byte[(int) file.length()];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+
+        try {
+            in.readFully(read);
+        } finally {
+            in.close();
+        }
+
+        if (!Arrays.equals(data, read)) {
+            throw new IOException("The download doesn't match the file.");
+        }
+    }
+
+    private static void run(String title, byte[] data, long latency,
+    long bytesPerSecond, int runs) throws Exception {
+        final RangeServer server =
+            new RangeServer(data, latency, bytesPerSecond);
+        // Allow a connection for every segment.
+        PooledHTTPClient pooled =
+            new PooledHTTPClient(20, 8, 30, TimeUnit.SECONDS);
+        final HttpClient client = pooled.getClient();
+        final URI uri = server.getURI();
+        final File file = File.createTempFile("bench", ".bin");
+
+        System.out.println(title);
+        System.out.println(String.format("%-20s %12s %10s",
+            "method", "median", "MB/s"));
+
+        try {
+            Bench.Task single = new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    new FileDownloader(client, null, null).download(uri, file);
+                }
+            };
+
+            single.run();
+            check(data, file);
+            print("single stream", Bench.median(0, runs, single));
+
+            for (final int count : SEGMENT_COUNTS) {
+                Bench.Task segmented = new Bench.Task() {
+                    @Override
+                    public void run() throws Exception {
+                        new SegmentedDownloader(client, count, 256 * 1024,
+                            null, null).download(uri, file);
+                    }
+                };
+
+                segmented.run();
+                check(data, file);
+                print(count + " segments", Bench.median(0, runs, segmented));
+            }
+        } finally {
+            file.delete();
+            pooled.shutdown();
+            server.close();
+        }
+
+        System.out.println();
+    }
+
+    private static void print(String name, long nanos) {
+        System.out.println(String.format("%-20s %12s %10.1f", name,
+            Bench.millis(nanos), SIZE / (nanos / 1e9) / 1e6));
+    }
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+
+        run("4 MiB, 100 ms latency, 1 MB/s per connection",
+            data, 100, 1000 * 1000, 3);
+        run("4 MiB, loopback without limits", data, 0, 0, 11);
+    }
+}
@@ -0,0 +1,94 @@
+package com.w0rp.androidutils.bench;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+import com.w0rp.androidutils.IO;
+
+/**
+ * Compares IO.streamToString() with the line by line decoding it replaced,
+ * on a feed of several megabytes with CRLF line endings.
+ */
+public class StreamToStringBenchmark {
+    private static final int SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The old implementation of IO.streamToString().
+     */
+    private static String lineByLine(InputStream is) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
+        StringBuilder sb = new StringBuilder();
+
+        String line = null;
+
+        try {
+            while ((line = reader.readLine()) != null) {
+                sb.append(line + "\n");
+            }
+        } finally {
+            IO.close(is);
+        }
+
+        return sb.toString();
+    }
+
+    private static byte[] feed() {
+        StringBuilder sb = new StringBuilder(SIZE);
+
+        for (int i = 0; sb.length() < SIZE; ++i) {
+            sb.append("{\"id\": ").append(i)
+                .append(", \"title\": \"Post number ").append(i)
+                .append(" \u00e9t\u00e9\", \"body\": \"Lorem ipsum dolor")
+                .append(" sit amet, consectetur adipiscing\"},\r\n");
+        }
+
+        return sb.toString().getBytes(IO.UTF_8);
+    }
+
+    public static void main(String[] args) throws Exception {
+        final byte[] data = feed();
+        Bench.Task[] tasks = new Bench.Task[] {
+            new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    lineByLine(new ByteArrayInputStream(data));
+                }
+            },
+            new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    IO.streamToString(new ByteArrayInputStream(data),
+                        IO.UTF_8, -1);
+                }
+            },
+            new Bench.Task() {
+                @Override
+                public void run() throws Exception {
+                    IO.streamToString(new ByteArrayInputStream(data),
+                        IO.UTF_8, data.length);
+                }
+            },
+        };
+        String[] names = new String[] {
+            "line by line (old)",
+            "bulk, no length hint",
+            "bulk, Content-Length hint",
+        };
+
+        System.out.println("Decoding " + data.length + " bytes");
+        System.out.println(String.format("%-28s %12s %10s %14s",
+            "method", "median", "MB/s", "allocated"));
+
+        for (int i = 0; i < tasks.length; ++i) {
+            long nanos = Bench.median(5, 21, tasks[i]);
+            long bytes = Bench.allocation(tasks[i]);
+
+            System.out.println(String.format("%-28s %12s %10.1f %11.1f MB",
+                names[i], Bench.millis(nanos),
+                data.length / (nanos / 1e9) / 1e6, bytes / 1e6));
+        }
+    }
+}
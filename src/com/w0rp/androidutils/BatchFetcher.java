@@ -0,0 +1,315 @@
+package com.w0rp.androidutils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * This class fetches many URIs at once, with a bound on the number of
+ * requests running at the same time. Requests are made with the shared
+ * pooled client from Net, so connections are reused between requests.
+ *
+ * A failure for one URI is reported for that URI only, and doesn't stop
+ * the rest of the batch.
+ */
+public class BatchFetcher {
+    /**
+     * This interface parses the response for a single URI.
+     *
+     * Parsers are called on background threads, possibly for several
+     * URIs at the same time, so they must be thread safe.
+     *
+     * @param <T> The type of the parsed results.
+     */
+    public interface Parser<T> {
+        /**
+         * @param in The response data, decompressed.
+         * @param charset The charset of the response data.
+         * @return The parsed result.
+         * @throws Exception Thrown when something goes wrong while parsing.
+         */
+        T parse(InputStream in, Charset charset) throws Exception;
+    }
+
+    /**
+     * This interface receives the results of a batch as each request
+     * completes. Every method is called on the UI thread.
+     *
+     * @param <T> The type of the parsed results.
+     */
+    public interface Listener<T> {
+        /**
+         * Called when a URI has been fetched and parsed.
+         */
+        void onResult(URI uri, @Nullable T result);
+
+        /**
+         * Called when fetching or parsing a URI failed.
+         */
+        void onFailure(URI uri, NetworkFailure failure);
+
+        /**
+         * Called once after every URI has succeeded or failed. This is
+         * also called for a cancelled batch, once the requests which were
+         * running when it was cancelled have finished.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The outcome of fetching a single URI.
+     *
+     * @param <T> The type of the parsed results.
+     */
+    public static final class Item<T> {
+        private final URI uri;
+        private final @Nullable T result;
+        private final @Nullable NetworkFailure failure;
+
+        private Item(URI uri, @Nullable T result,
+        @Nullable NetworkFailure failure) {
+            this.uri = uri;
+            this.result = result;
+            this.failure = failure;
+        }
+
+        /**
+         * @return The URI which was fetched.
+         */
+        public URI getURI() {
+            return uri;
+        }
+
+        /**
+         * @return The parsed result, or null if the fetch failed.
+         */
+        public @Nullable T getResult() {
+            return result;
+        }
+
+        /**
+         * @return The reason the fetch failed, or null if it succeeded.
+         */
+        public @Nullable NetworkFailure getFailure() {
+            return failure;
+        }
+    }
+
+    /**
+     * A handle for a batch started with fetch(), which can be cancelled.
+     */
+    public static final class Batch {
+        private volatile boolean cancelled = false;
+        private final CountDownLatch done;
+
+        private Batch(int count) {
+            done = new CountDownLatch(count);
+        }
+
+        /**
+         * Stop making requests for the batch. Requests already running will
+         * finish in the background, and their results will not be passed
+         * to the listener. onComplete() will still be called once they
+         * have finished.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * @return true if cancel() has been called.
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return true if every URI in the batch has been handled.
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+    }
+
+    private final ThreadPoolExecutor pool;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @param maxConcurrency The maximum number of requests to run at once.
+     */
+    public BatchFetcher(int maxConcurrency) {
+        pool = Util.pool(maxConcurrency, 30, TimeUnit.SECONDS);
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Fetch and parse a single URI.
+     */
+    private static <T> Item<T> fetchOne(URI uri, Parser<T> parser) {
+        Net.Response response = Net.openRequest(Net.prepareGet(uri));
+
+        try {
+            IOException error = response.getError();
+
+            if (error != null) {
+                // The request couldn't be made, so report why.
+                return new Item<T>(uri, null,
+                    new NetworkFailure(error, response.getResponseCode()));
+            }
+
+            if (response.failure()) {
+                return new Item<T>(uri, null, new NetworkFailure(
+                    new IOException("HTTP request failed with response code: "
+                        + response.getResponseCode()),
+                    response.getResponseCode()));
+            }
+
+            return new Item<T>(uri,
+                parser.parse(response.getStream(), response.getCharset()),
+                null);
+        } catch (Exception e) {
+            // Closing the response would read the rest of the body over
+            // the network, so drop the connection instead.
+            response.abort();
+
+            return new Item<T>(uri, null,
+                new NetworkFailure(e, response.getResponseCode()));
+        } finally {
+            // Release the connection back to the pool, unless it was
+            // dropped above.
+            response.close();
+        }
+    }
+
+    /**
+     * Fetch a collection of URIs in the background, calling the listener
+     * on the UI thread as each URI is handled.
+     *
+     * @param uriList The URIs to fetch.
+     * @param parser The parser for the responses.
+     * @param listener The listener for the results.
+     * @return A handle for cancelling the batch.
+     */
+    public <T> Batch fetch(Collection<URI> uriList, final Parser<T> parser,
+    final Listener<T> listener) {
+        final Batch batch = new Batch(uriList.size());
+        final AtomicInteger remaining = new AtomicInteger(uriList.size());
+
+        if (uriList.isEmpty()) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onComplete();
+                }
+            });
+        }
+
+        for (final URI uri : uriList) {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Item<T> item = !batch.cancelled
+                        ? fetchOne(uri, parser)
+                        : null;
+
+                    batch.done.countDown();
+
+                    handler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            // Items are counted on the UI thread, so
+                            // onComplete is always called last.
+                            boolean last = remaining.decrementAndGet() == 0;
+
+                            if (!batch.cancelled && item != null) {
+                                NetworkFailure failure = item.getFailure();
+
+                                if (failure != null) {
+                                    listener.onFailure(uri, failure);
+                                } else {
+                                    listener.onResult(uri, item.getResult());
+                                }
+                            }
+
+                            if (last) {
+                                listener.onComplete();
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        return batch;
+    }
+
+    /**
+     * Fetch a collection of URIs, and wait for all of them to be handled.
+     *
+     * This method blocks, so it MUST NOT be called from the UI thread.
+     *
+     * @param uriList The URIs to fetch.
+     * @param parser The parser for the responses.
+     * @return An item for each URI, in the same order as the URIs.
+     * @throws InterruptedException If the thread is interrupted while
+     *     waiting. Requests which have started will still finish.
+     */
+    @SuppressWarnings("null")
+    public <T> List<Item<T>> fetchAll(Collection<URI> uriList,
+    final Parser<T> parser) throws InterruptedException {
+        final List<Item<T>> itemList = new ArrayList<Item<T>>(uriList.size());
+        final CountDownLatch done = new CountDownLatch(uriList.size());
+        int index = 0;
+
+        for (int i = 0; i < uriList.size(); ++i) {
+            // Fill the list, so items can be set as they complete.
+            itemList.add(null);
+        }
+
+        for (final URI uri : uriList) {
+            final int itemIndex = index++;
+
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Item<T> item = fetchOne(uri, parser);
+
+                        synchronized (itemList) {
+                            itemList.set(itemIndex, item);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        done.await();
+
+        synchronized (itemList) {
+            return itemList;
+        }
+    }
+
+    /**
+     * Stop the threads used by the fetcher. Batches which have not
+     * finished will not be completed.
+     */
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+}
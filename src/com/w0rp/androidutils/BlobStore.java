@@ -0,0 +1,478 @@
+package com.w0rp.androidutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class stores blobs of data on disk by the hash of their contents,
+ * so data stored under several keys, such as the same file downloaded from
+ * different URIs, is only stored once.
+ *
+ * Each key holds a reference to a blob, and a blob is deleted when no keys
+ * refer to it. The total size of the blobs is bounded with a FileRotator,
+ * and when a blob is evicted, every key for it is removed.
+ *
+ * Blobs can be compressed with Deflate as they are written, and they are
+ * decompressed as they are read. Blobs and references are written to
+ * temporary files first, and renamed over the old files when complete,
+ * so a file is always either the old one or the new one.
+ */
+public class BlobStore {
+    private static final String BLOB_SUFFIX = ".blob";
+    private static final String REF_SUFFIX = ".ref";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String JOURNAL_NAME = "journal";
+    private static final int FORMAT_RAW = 0;
+    private static final int FORMAT_DEFLATE = 1;
+
+    private final File directory;
+    private final boolean compress;
+    private final FileRotator rotator;
+    // Reference file names to blob hashes.
+    private final HashMap<String, String> refMap =
+        new HashMap<String, String>();
+    // Blob hashes to the number of references to them.
+    private final HashMap<String, Integer> refCountMap =
+        new HashMap<String, Integer>();
+    // Hashes of blobs evicted by the rotator, which still have references.
+    private final ConcurrentLinkedQueue<String> evictedQueue =
+        new ConcurrentLinkedQueue<String>();
+    private boolean loaded = false;
+
+    /**
+     * @param directory The directory to store blobs in.
+     * @param maxSize The maximum total size of the blobs on disk.
+     * @param compress true to compress blobs as they are written.
+     */
+    public BlobStore(File directory, long maxSize, boolean compress) {
+        this.directory = directory;
+        this.compress = compress;
+        this.rotator = new FileRotator(maxSize,
+            new File(directory, JOURNAL_NAME), FileRotator.Policy.LRU);
+        // The rotator is locked while the listener runs, so the references
+        // are dropped later, while the store is locked.
+        this.rotator.setEvictionListener(new FileRotator.EvictionListener() {
+            @Override
+            public void onEvict(File file, long size) {
+                String name = file.getName();
+
+                evictedQueue.add(Coerce.notnull(name.substring(
+                    0, name.length() - BLOB_SUFFIX.length())));
+            }
+        });
+    }
+
+    /**
+     * @return The directory the blobs are stored in.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return Coerce.notnull(MessageDigest.getInstance("SHA-256"));
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform must support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File blobFile(String hash) {
+        return new File(directory, hash + BLOB_SUFFIX);
+    }
+
+    private static String refName(String key) {
+        return IO.hex(sha256().digest(key.getBytes(IO.UTF_8))) + REF_SUFFIX;
+    }
+
+    private static FilenameFilter suffixFilter(final String suffix) {
+        return new FilenameFilter() {
+            @Override
+            public boolean accept(@Nullable File dir, @Nullable String name) {
+                return name != null && name.endsWith(suffix);
+            }
+        };
+    }
+
+    private static @Nullable String readRef(File file) {
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new FileInputStream(file));
+
+            return in.readUTF();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IO.close(in);
+        }
+    }
+
+    /**
+     * Read the references and bring the rotator up to date the first time
+     * the store is used, deleting anything left behind.
+     */
+    private synchronized void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        loaded = true;
+        directory.mkdirs();
+
+        File[] tempFileList = directory.listFiles(suffixFilter(TEMP_SUFFIX));
+
+        if (tempFileList != null) {
+            for (File file : tempFileList) {
+                // Clean up after writes which never finished.
+                file.delete();
+            }
+        }
+
+        rotator.reconcile(directory, suffixFilter(BLOB_SUFFIX));
+        // Reconciling can evict blobs, but there are no references yet.
+        evictedQueue.clear();
+
+        File[] refFileList = directory.listFiles(suffixFilter(REF_SUFFIX));
+
+        if (refFileList != null) {
+            for (File file : refFileList) {
+                String hash = readRef(file);
+
+                if (hash == null || !blobFile(hash).exists()) {
+                    // The blob was evicted, so the reference is gone.
+                    file.delete();
+                } else {
+                    refMap.put(Coerce.notnull(file.getName()), hash);
+                    addRef(hash, 1);
+                }
+            }
+        }
+
+        File[] blobFileList = directory.listFiles(suffixFilter(BLOB_SUFFIX));
+
+        if (blobFileList != null) {
+            for (File file : blobFileList) {
+                String name = file.getName();
+                String hash = name.substring(
+                    0, name.length() - BLOB_SUFFIX.length());
+
+                if (!refCountMap.containsKey(hash)) {
+                    // Nothing refers to the blob any more.
+                    rotator.remove(file);
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove every reference to the blobs the rotator has evicted.
+     */
+    private void dropEvicted() {
+        if (evictedQueue.isEmpty()) {
+            return;
+        }
+
+        HashSet<String> hashSet = new HashSet<String>();
+        String hash;
+
+        while ((hash = evictedQueue.poll()) != null) {
+            // The rotator has deleted the blob already.
+            refCountMap.remove(hash);
+            hashSet.add(hash);
+        }
+
+        Iterator<Map.Entry<String, String>> iter =
+            refMap.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Map.Entry<String, String> entry = iter.next();
+
+            if (hashSet.contains(entry.getValue())) {
+                iter.remove();
+                new File(directory, entry.getKey()).delete();
+            }
+        }
+    }
+
+    private void addRef(String hash, int diff) {
+        Integer count = refCountMap.get(hash);
+        int newCount = (count != null ? count : 0) + diff;
+
+        if (newCount > 0) {
+            refCountMap.put(hash, newCount);
+        } else {
+            refCountMap.remove(hash);
+
+            File blob = blobFile(hash);
+
+            rotator.remove(blob);
+            blob.delete();
+        }
+    }
+
+    /**
+     * Write data to a temporary file, hashing it on the way.
+     *
+     * @return The hash of the data.
+     */
+    private String write(InputStream in, File tempFile) throws IOException {
+        MessageDigest digest = sha256();
+        OutputStream fileOut =
+            new BufferedOutputStream(new FileOutputStream(tempFile));
+        OutputStream out = fileOut;
+
+        try {
+            fileOut.write(compress ? FORMAT_DEFLATE : FORMAT_RAW);
+
+            if (compress) {
+                out = new DeflaterOutputStream(out);
+            }
+
+            // The hash is for the data before it is compressed, so the same
+            // data always has the same hash.
+            out = new DigestOutputStream(out, digest);
+
+            IO.stream(in, out);
+            out.close();
+        } finally {
+            IO.close(out);
+        }
+
+        return IO.hex(digest.digest());
+    }
+
+    private void writeRef(String refName, String hash) throws IOException {
+        File tempFile = new File(directory, refName + TEMP_SUFFIX);
+        DataOutputStream out =
+            new DataOutputStream(new FileOutputStream(tempFile));
+
+        try {
+            out.writeUTF(hash);
+            out.close();
+
+            File refFile = new File(directory, refName);
+
+            if (!tempFile.renameTo(refFile)) {
+                throw new IOException("Could not write " + refFile);
+            }
+        } finally {
+            IO.close(out);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Store data under a key, replacing any data for the key. If the same
+     * data is already stored, it is shared instead of being stored again.
+     *
+     * This method reads from the stream and writes to the disk, so it
+     * should not be called from the UI thread.
+     *
+     * @param key The key to store the data under, such as a URI.
+     * @param in The data to store. The stream is read to the end, but
+     *     not closed.
+     * @return The hash of the data.
+     * @throws IOException If the data could not be read or stored.
+     */
+    public String put(String key, InputStream in) throws IOException {
+        ensureLoaded();
+
+        File tempFile = File.createTempFile("blob", TEMP_SUFFIX, directory);
+        String hash;
+
+        try {
+            // The data is written without holding the lock.
+            hash = write(in, tempFile);
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        synchronized (this) {
+            File blob = blobFile(hash);
+
+            if (refCountMap.containsKey(hash) && blob.exists()) {
+                // We have this data already.
+                tempFile.delete();
+                rotator.touch(blob);
+            } else {
+                // The rename replaces any blob left behind in one step.
+                if (!tempFile.renameTo(blob)) {
+                    tempFile.delete();
+                    throw new IOException("Could not write " + blob);
+                }
+
+                rotator.add(blob);
+            }
+
+            String refName = refName(key);
+
+            // Count the new reference before dropping the old one, so
+            // putting the same data again doesn't delete the blob.
+            addRef(hash, 1);
+
+            try {
+                writeRef(refName, hash);
+
+                String lastHash = refMap.put(refName, hash);
+
+                if (lastHash != null) {
+                    addRef(lastHash, -1);
+                }
+            } catch (IOException e) {
+                addRef(hash, -1);
+                throw e;
+            } finally {
+                // Adding the blob can push other blobs, or this one, out.
+                dropEvicted();
+            }
+        }
+
+        return hash;
+    }
+
+    /**
+     * Open the data stored under a key.
+     *
+     * @param key The key the data was stored under.
+     * @return A stream of the data, decompressed, or null if there is no
+     *     data for the key. The stream must be closed.
+     */
+    public synchronized @Nullable InputStream open(String key) {
+        ensureLoaded();
+
+        String refName = refName(key);
+        String hash = refMap.get(refName);
+
+        if (hash == null) {
+            return null;
+        }
+
+        File blob = blobFile(hash);
+        InputStream in = null;
+
+        try {
+            in = new BufferedInputStream(new FileInputStream(blob));
+
+            int format = in.read();
+
+            if (format == FORMAT_DEFLATE) {
+                in = new InflaterInputStream(in);
+            } else if (format != FORMAT_RAW) {
+                throw new IOException("Unknown blob format: " + format);
+            }
+
+            rotator.touch(blob);
+
+            return in;
+        } catch (IOException e) {
+            IO.close(in);
+
+            // The blob was evicted or damaged, so the key is gone.
+            remove(key);
+
+            return null;
+        }
+    }
+
+    /**
+     * @param key The key the data was stored under.
+     * @return The hash of the data for a key, or null.
+     */
+    public synchronized @Nullable String getHash(String key) {
+        ensureLoaded();
+
+        return refMap.get(refName(key));
+    }
+
+    /**
+     * Remove the data for a key. The data is deleted when no other keys
+     * refer to it.
+     *
+     * @param key The key the data was stored under.
+     */
+    public synchronized void remove(String key) {
+        ensureLoaded();
+
+        String refName = refName(key);
+        String hash = refMap.remove(refName);
+
+        new File(directory, refName).delete();
+
+        if (hash != null) {
+            addRef(hash, -1);
+        }
+    }
+
+    /**
+     * @return The number of distinct blobs referred to by keys.
+     */
+    public synchronized int getBlobCount() {
+        ensureLoaded();
+
+        return refCountMap.size();
+    }
+
+    /**
+     * @return The number of keys.
+     */
+    public synchronized int getKeyCount() {
+        ensureLoaded();
+
+        return refMap.size();
+    }
+
+    /**
+     * @return A snapshot of the sizes and counters for the blobs on disk.
+     */
+    public FileRotator.Stats getStats() {
+        ensureLoaded();
+
+        return rotator.getStats();
+    }
+
+    /**
+     * Remove every key whose blob has been evicted.
+     */
+    public synchronized void trim() {
+        ensureLoaded();
+
+        Iterator<Map.Entry<String, String>> iter =
+            refMap.entrySet().iterator();
+
+        while (iter.hasNext()) {
+            Map.Entry<String, String> entry = iter.next();
+            String hash = Coerce.notnull(entry.getValue());
+
+            if (!blobFile(hash).exists()) {
+                iter.remove();
+                new File(directory, entry.getKey()).delete();
+                addRef(hash, -1);
+            }
+        }
+    }
+}
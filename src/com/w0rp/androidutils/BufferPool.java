@@ -0,0 +1,168 @@
+package com.w0rp.androidutils;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class keeps a bounded number of byte buffers around for reuse, so
+ * code which copies data often doesn't need to allocate a new buffer for
+ * every copy.
+ *
+ * The pool is split into stripes, and each thread picks a stripe by its ID,
+ * so threads copying data at the same time rarely wait on each other.
+ * Buffers released when a stripe is full are left for the garbage collector.
+ */
+public class BufferPool {
+    private static final class Stripe {
+        private final byte[][] bufferList;
+        private int count = 0;
+
+        Stripe(int size) {
+            bufferList = new byte[size][];
+        }
+
+        synchronized @Nullable byte[] take() {
+            if (count == 0) {
+                return null;
+            }
+
+            byte[] buffer = bufferList[--count];
+            // Drop the reference so the slot doesn't keep the buffer alive.
+            bufferList[count] = null;
+
+            return buffer;
+        }
+
+        synchronized boolean give(byte[] buffer) {
+            if (count == bufferList.length) {
+                return false;
+            }
+
+            bufferList[count++] = buffer;
+
+            return true;
+        }
+
+        synchronized int clear() {
+            int cleared = count;
+
+            while (count > 0) {
+                bufferList[--count] = null;
+            }
+
+            return cleared;
+        }
+    }
+
+    /**
+     * The default size for buffers in the shared pool.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /**
+     * The default number of buffers the shared pool will retain.
+     */
+    public static final int DEFAULT_MAX_RETAINED = 16;
+
+    private static final BufferPool sharedPool =
+        new BufferPool(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_RETAINED);
+
+    /**
+     * @return A single pool shared by the whole process.
+     */
+    public static BufferPool shared() {
+        return sharedPool;
+    }
+
+    private final int bufferSize;
+    private final Stripe[] stripeList;
+
+    /**
+     * Create a new buffer pool.
+     *
+     * @param bufferSize The size of each buffer in bytes.
+     * @param maxRetained The maximum number of buffers which will be kept
+     *     in the pool when they are not in use.
+     */
+    public BufferPool(int bufferSize, int maxRetained) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be > 0");
+        }
+
+        if (maxRetained < 0) {
+            throw new IllegalArgumentException("maxRetained must be >= 0");
+        }
+
+        this.bufferSize = bufferSize;
+
+        int stripeCount = Math.max(1, Math.min(maxRetained,
+            Runtime.getRuntime().availableProcessors()));
+
+        stripeList = new Stripe[stripeCount];
+
+        for (int i = 0; i < stripeCount; ++i) {
+            // Spread the retained buffers evenly across the stripes.
+            stripeList[i] = new Stripe(
+                (maxRetained + stripeCount - 1 - i) / stripeCount);
+        }
+    }
+
+    private Stripe stripe() {
+        long id = Thread.currentThread().getId();
+
+        return stripeList[(int) (id % stripeList.length)];
+    }
+
+    /**
+     * @return The size of buffers from this pool in bytes.
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Take a buffer from the pool, allocating a new one if the pool is empty.
+     *
+     * The buffer should be handed back with release() when it is no longer
+     * used. The contents of the buffer are undefined.
+     *
+     * @return A buffer of getBufferSize() bytes.
+     */
+    public byte[] acquire() {
+        byte[] buffer = stripe().take();
+
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+
+        return buffer;
+    }
+
+    /**
+     * Hand a buffer back to the pool.
+     *
+     * Buffers of the wrong size, and null references, will be ignored.
+     * A buffer must not be used after it has been released.
+     *
+     * @param buffer A buffer taken with acquire().
+     */
+    public void release(@Nullable byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            stripe().give(buffer);
+        }
+    }
+
+    /**
+     * Drop every buffer currently held by the pool.
+     *
+     * @return The number of buffers which were dropped.
+     */
+    public int clear() {
+        int cleared = 0;
+
+        for (Stripe stripe : stripeList) {
+            cleared += stripe.clear();
+        }
+
+        return cleared;
+    }
+}
@@ -0,0 +1,376 @@
+package com.w0rp.androidutils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class bounds the total size of a set of files like FileRotator, for
+ * many threads adding files at the same time.
+ *
+ * Files are spread over a number of shards by name, each with its own lock,
+ * and the total size is kept in an AtomicLong, so threads adding different
+ * files rarely wait for each other. When the total goes over the maximum,
+ * one thread at a time removes files, taking the oldest file from the
+ * fronts of all of the shards each time. This keeps the order files are
+ * removed in close to a single FIFO or LRU order, although files added
+ * while files are being removed may be ordered slightly differently.
+ *
+ * The thread removing files reads the oldest stamp of each shard once,
+ * and then locks only the shard it removes a file from, so removing a file
+ * takes one shard lock rather than one for every shard. The stamps it
+ * keeps can only be older than the real ones, which it checks for under
+ * the shard lock, except that a shard which was empty is not looked at
+ * again until every other shard is empty, so a file added to an empty
+ * shard while files are being removed can be removed after newer files.
+ *
+ * Removed files are renamed while their shard is locked, and deleted under
+ * the new name after the locks are released, so a file added again with
+ * the same name is never deleted by mistake once add() has returned.
+ *
+ * Only the FIFO and LRU policies are supported, and there is no journal.
+ *
+ * With a single CPU, this class is slower than FileRotator, and it has not
+ * yet been measured with several CPUs. Prefer FileRotator unless the
+ * RotatorConcurrencyBenchmark shows this class is faster on the devices
+ * you target. See bench/README.md.
+ */
+public class ConcurrentFileRotator {
+    private static final int DEFAULT_SHARD_COUNT = 16;
+    // Adding threads wait for files to be removed once the total is over
+    // the maximum by this fraction of it.
+    private static final int MAX_OVERSHOOT_DIVISOR = 16;
+
+    private static final class Entry {
+        private final long size;
+        private long stamp;
+
+        Entry(long size, long stamp) {
+            this.size = size;
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class Shard {
+        private final LinkedHashMap<String, Entry> entryMap;
+
+        Shard(boolean accessOrder) {
+            entryMap = new LinkedHashMap<String, Entry>(16, 0.75f,
+                accessOrder);
+        }
+
+        /**
+         * @return The stamp of the first entry, or Long.MAX_VALUE.
+         */
+        synchronized long firstStamp() {
+            Iterator<Entry> iter = entryMap.values().iterator();
+
+            return iter.hasNext() ? iter.next().stamp : Long.MAX_VALUE;
+        }
+    }
+
+    private final Shard[] shards;
+    private final boolean lru;
+    private final AtomicLong totalSize = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final ReentrantLock evictLock = new ReentrantLock();
+    private volatile long weakMaxSize;
+
+    /**
+     * Create a rotator with the default number of shards.
+     *
+     * @param weakMaxSize The maximum total size of the files.
+     * @param policy The order to remove files in, FIFO or LRU.
+     */
+    public ConcurrentFileRotator(long weakMaxSize, FileRotator.Policy policy) {
+        this(weakMaxSize, policy, DEFAULT_SHARD_COUNT);
+    }
+
+    /**
+     * @param weakMaxSize The maximum total size of the files.
+     * @param policy The order to remove files in, FIFO or LRU.
+     * @param shardCount The number of shards to split files over.
+     */
+    public ConcurrentFileRotator(long weakMaxSize, FileRotator.Policy policy,
+    int shardCount) {
+        if (policy == FileRotator.Policy.SEGMENTED_LRU) {
+            throw new IllegalArgumentException(
+                "SEGMENTED_LRU is not supported");
+        }
+
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("shardCount must be >= 1");
+        }
+
+        this.weakMaxSize = weakMaxSize;
+        this.lru = policy == FileRotator.Policy.LRU;
+        this.shards = new Shard[shardCount];
+
+        for (int i = 0; i < shardCount; ++i) {
+            shards[i] = new Shard(lru);
+        }
+    }
+
+    private Shard shard(String name) {
+        // Spread the bits of the hash code, as HashMap does.
+        int hash = name.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+
+        return Coerce.notnull(shards[(hash & 0x7fffffff) % shards.length]);
+    }
+
+    /**
+     * Add a file, removing other files if the total size goes over the
+     * maximum size.
+     *
+     * @param file The file to add.
+     */
+    public void add(File file) {
+        add(file, file.length());
+    }
+
+    /**
+     * Add a file with a size which is already known.
+     *
+     * @param file The file to add.
+     * @param size The size of the file in bytes.
+     */
+    public void add(File file, long size) {
+        String name = Coerce.notnull(file.getAbsolutePath());
+        Shard shard = shard(name);
+        Entry lastEntry;
+
+        synchronized (shard) {
+            lastEntry = shard.entryMap.remove(name);
+            shard.entryMap.put(name, new Entry(size, clock.incrementAndGet()));
+        }
+
+        long diff = lastEntry != null ? size - lastEntry.size : size;
+
+        if (totalSize.addAndGet(diff) > weakMaxSize) {
+            rotate();
+        }
+    }
+
+    /**
+     * Forget about a file, without deleting it.
+     *
+     * @param file The file to remove.
+     */
+    public void remove(File file) {
+        String name = Coerce.notnull(file.getAbsolutePath());
+        Shard shard = shard(name);
+        Entry entry;
+
+        synchronized (shard) {
+            entry = shard.entryMap.remove(name);
+        }
+
+        if (entry != null) {
+            totalSize.addAndGet(-entry.size);
+        }
+    }
+
+    /**
+     * Record a use of a file. With the LRU policy, this keeps the file from
+     * being removed before files which have not been used as recently.
+     *
+     * @param file The file which was used.
+     * @return true if the rotator knows about the file.
+     */
+    public boolean touch(File file) {
+        String name = Coerce.notnull(file.getAbsolutePath());
+        Shard shard = shard(name);
+
+        synchronized (shard) {
+            // get() moves the file to the end in access order.
+            Entry entry = shard.entryMap.get(name);
+
+            if (entry == null) {
+                return false;
+            }
+
+            if (lru) {
+                entry.stamp = clock.incrementAndGet();
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * Change the maximum size, removing files if needed.
+     *
+     * @param weakMaxSize The new maximum size.
+     */
+    public void setMax(long weakMaxSize) {
+        this.weakMaxSize = weakMaxSize;
+
+        if (totalSize.get() > weakMaxSize) {
+            rotate();
+        }
+    }
+
+    /**
+     * @return The total size of the files.
+     */
+    public long getSize() {
+        return totalSize.get();
+    }
+
+    /**
+     * @return The number of files.
+     */
+    public int getCount() {
+        int count = 0;
+
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                count += shard.entryMap.size();
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Remove the oldest files until the total size is within the maximum.
+     *
+     * Only one thread removes files at a time. Other threads carry on, as
+     * the thread removing files will keep going until the total is in
+     * bounds, unless the total gets far over the maximum, such as when
+     * the thread removing files isn't scheduled. Then they wait for it.
+     */
+    private void rotate() {
+        while (totalSize.get() > weakMaxSize) {
+            if (!evictLock.tryLock()) {
+                long max = weakMaxSize;
+
+                if (totalSize.get() <= max + max / MAX_OVERSHOOT_DIVISOR) {
+                    return;
+                }
+
+                evictLock.lock();
+            }
+
+            List<File> tombstoneList = new ArrayList<File>();
+            long[] stamps = new long[shards.length];
+            int evicted = 0;
+
+            try {
+                readStamps(stamps);
+
+                while (totalSize.get() > weakMaxSize
+                && evictOldest(stamps, tombstoneList)) {
+                    ++evicted;
+                }
+            } finally {
+                evictLock.unlock();
+            }
+
+            // Delete files without holding any locks.
+            for (File tombstone : tombstoneList) {
+                tombstone.delete();
+            }
+
+            if (evicted == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Read the stamp of the first entry in every shard.
+     *
+     * @param stamps The array to store the stamps in, by shard.
+     */
+    private void readStamps(long[] stamps) {
+        for (int i = 0; i < shards.length; ++i) {
+            stamps[i] = Coerce.notnull(shards[i]).firstStamp();
+        }
+    }
+
+    /**
+     * Remove the oldest file from the fronts of the shards, and rename it
+     * to be deleted.
+     *
+     * @param stamps The stamps of the first entries in the shards, as last
+     *     seen. These are updated as files are removed.
+     * @param tombstoneList A list to add the new name of the file to.
+     * @return false if there are no files.
+     */
+    private boolean evictOldest(long[] stamps, List<File> tombstoneList) {
+        boolean reread = false;
+
+        while (true) {
+            int oldest = -1;
+            long oldestStamp = Long.MAX_VALUE;
+
+            for (int i = 0; i < stamps.length; ++i) {
+                if (stamps[i] < oldestStamp) {
+                    oldest = i;
+                    oldestStamp = stamps[i];
+                }
+            }
+
+            if (oldest == -1) {
+                if (reread) {
+                    return false;
+                }
+
+                // Every shard looked empty. Files may have been added.
+                readStamps(stamps);
+                reread = true;
+                continue;
+            }
+
+            Shard shard = Coerce.notnull(shards[oldest]);
+
+            synchronized (shard) {
+                Iterator<Map.Entry<String, Entry>> iter =
+                    shard.entryMap.entrySet().iterator();
+
+                if (!iter.hasNext()) {
+                    // The shard was emptied since we looked. Look again.
+                    stamps[oldest] = Long.MAX_VALUE;
+                    continue;
+                }
+
+                Map.Entry<String, Entry> first = iter.next();
+
+                if (first.getValue().stamp != oldestStamp) {
+                    // The first file was removed or used since we looked,
+                    // so another shard may now have an older file.
+                    stamps[oldest] = first.getValue().stamp;
+                    continue;
+                }
+
+                iter.remove();
+                totalSize.addAndGet(-first.getValue().size);
+                stamps[oldest] = iter.hasNext()
+                    ? iter.next().getValue().stamp
+                    : Long.MAX_VALUE;
+
+                File file = new File(first.getKey());
+                File tombstone = FileRotator.tombstone(file);
+
+                // Renaming is quick, and once the shard is unlocked a file
+                // added with the same name must be kept.
+                if (file.renameTo(tombstone)) {
+                    tombstoneList.add(tombstone);
+                } else {
+                    // The file is gone, or can't be renamed.
+                    file.delete();
+                }
+
+                return true;
+            }
+        }
+    }
+}
@@ -0,0 +1,514 @@
+package com.w0rp.androidutils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class stores HTTP response bodies on disk, along with the validators
+ * needed to revalidate them, so cached responses survive process restarts.
+ *
+ * Each URI is stored in a single file in the cache directory. The total size
+ * of the directory is bounded with a FileRotator, and the oldest entries are
+ * removed first when the bound is exceeded.
+ *
+ * Entries are written to temporary files first, and only replace existing
+ * entries when a complete body has been written.
+ *
+ * An entry from get() keeps its file open, so its body can still be read
+ * after the entry has been replaced or evicted, and refreshing it never
+ * touches the entry which replaced it.
+ */
+public class DiskResponseCache {
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".cache";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String JOURNAL_NAME = "journal";
+
+    /**
+     * A cached response, as found by get(). The entry holds its file open
+     * until it is closed.
+     */
+    public static final class Entry implements Closeable {
+        private final RandomAccessFile file;
+        private final @Nullable String lastModified;
+        private final @Nullable String eTag;
+        private final Charset charset;
+        private final long storedTime;
+        private final long bodyOffset;
+
+        private Entry(RandomAccessFile file, @Nullable String lastModified,
+        @Nullable String eTag, Charset charset, long storedTime,
+        long bodyOffset) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.eTag = eTag;
+            this.charset = charset;
+            this.storedTime = storedTime;
+            this.bodyOffset = bodyOffset;
+        }
+
+        @SuppressWarnings("null")
+        private FileChannel channel() {
+            return file.getChannel();
+        }
+
+        /**
+         * @return The Last-Modified header sent with the response, or null.
+         */
+        public @Nullable String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return The ETag header sent with the response, or null.
+         */
+        public @Nullable String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return The charset the body is encoded with.
+         */
+        public Charset getCharset() {
+            return charset;
+        }
+
+        /**
+         * @return The time the entry was stored, in milliseconds since
+         *     the epoch.
+         */
+        public long getStoredTime() {
+            return storedTime;
+        }
+
+        /**
+         * @return The length of the body in bytes.
+         */
+        public long getBodyLength() {
+            try {
+                return Math.max(0, channel().size() - bodyOffset);
+            } catch (IOException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Open the stored response body. The body can be opened more than
+         * once, and closing the stream does not close the entry.
+         *
+         * @return A stream of the body, which should be closed by the caller.
+         * @throws IOException If the entry is closed or the body is missing.
+         */
+        public InputStream openBody() throws IOException {
+            FileChannel channel = channel();
+
+            if (!channel.isOpen() || channel.size() < bodyOffset) {
+                throw new IOException("The cached body is gone.");
+            }
+
+            return new BodyInputStream(channel, bodyOffset);
+        }
+
+        /**
+         * Close the file for the entry.
+         */
+        @Override
+        public void close() {
+            IO.close(file);
+        }
+    }
+
+    /**
+     * A stream reading from a position in a file, without moving the
+     * position of the file, so bodies can be read more than once.
+     */
+    private static final class BodyInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+
+        BodyInputStream(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] buffer = new byte[1];
+
+            return read(buffer, 0, 1) == -1 ? -1 : buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(@Nullable byte[] buffer, int offset, int length)
+        throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+
+            int len = channel.read(
+                ByteBuffer.wrap(Coerce.notnull(buffer), offset, length),
+                position);
+
+            if (len > 0) {
+                position += len;
+            }
+
+            return len;
+        }
+    }
+
+    /**
+     * This object writes a new entry to the cache. The response body is
+     * written to the cache as it is read through the stream from tee().
+     *
+     * The entry is only stored when commit() is called after the whole
+     * body has been read.
+     */
+    public final class Writer {
+        private final File tempFile;
+        private final File file;
+        private final OutputStream out;
+        private boolean complete = false;
+        private boolean failed = false;
+        private boolean finished = false;
+
+        private Writer(File tempFile, File file, OutputStream out) {
+            this.tempFile = tempFile;
+            this.file = file;
+            this.out = out;
+        }
+
+        /**
+         * Wrap a stream so everything read from it is also written
+         * to the cache.
+         *
+         * @param in The stream of the response body.
+         * @return A stream which should be read instead.
+         */
+        public InputStream tee(InputStream in) {
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    int value = super.read();
+
+                    if (value == -1) {
+                        complete = true;
+                    } else {
+                        write(new byte[] { (byte) value }, 0, 1);
+                    }
+
+                    return value;
+                }
+
+                @Override
+                public int read(@Nullable byte[] buffer, int offset,
+                int length) throws IOException {
+                    int len = super.read(buffer, offset, length);
+
+                    if (len == -1) {
+                        complete = true;
+                    } else if (buffer != null) {
+                        write(buffer, offset, len);
+                    }
+
+                    return len;
+                }
+
+                @Override
+                public long skip(long n) throws IOException {
+                    // Skipped data wouldn't be written to the cache.
+                    failed = true;
+
+                    return super.skip(n);
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+            };
+        }
+
+        private void write(byte[] buffer, int offset, int len) {
+            if (failed) {
+                return;
+            }
+
+            try {
+                out.write(buffer, offset, len);
+            } catch (IOException e) {
+                // Failing to cache shouldn't fail the request.
+                failed = true;
+            }
+        }
+
+        /**
+         * Store the entry, if the whole body was read without errors.
+         * Otherwise, the entry will be discarded.
+         *
+         * @return true if the entry was stored.
+         */
+        public boolean commit() {
+            if (finished) {
+                return false;
+            }
+
+            finished = true;
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                failed = true;
+            }
+
+            if (!complete || failed || !tempFile.renameTo(file)) {
+                tempFile.delete();
+                return false;
+            }
+
+            rotator.add(file);
+
+            return true;
+        }
+
+        /**
+         * Discard the entry.
+         */
+        public void abort() {
+            if (!finished) {
+                finished = true;
+                IO.close(out);
+                tempFile.delete();
+            }
+        }
+    }
+
+    private final File directory;
+    private final FileRotator rotator;
+    private boolean loaded = false;
+
+    /**
+     * @param directory The directory to store cached responses in.
+     * @param maxSize The maximum size of the cache in bytes.
+     */
+    public DiskResponseCache(File directory, long maxSize) {
+        this.directory = directory;
+        this.rotator = new FileRotator(maxSize,
+            new File(directory, JOURNAL_NAME));
+        // Evicting entries shouldn't hold up the threads writing them.
+        this.rotator.setAsyncDelete(true);
+    }
+
+    /**
+     * @return The directory the cache is stored in.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Load the entries already on disk the first time the cache is used,
+     * so this work doesn't happen on the thread creating the cache.
+     */
+    private synchronized void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+
+        loaded = true;
+        directory.mkdirs();
+
+        File[] tempFileList = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(@Nullable File dir, @Nullable String name) {
+                return name != null && name.endsWith(TEMP_SUFFIX);
+            }
+        });
+
+        if (tempFileList != null) {
+            for (File file : tempFileList) {
+                // Clean up after writes which never finished.
+                file.delete();
+            }
+        }
+
+        // The rotator's journal already knows about most of the entries,
+        // so only new or deleted files need to be looked at.
+        rotator.reconcile(directory, new FilenameFilter() {
+            @Override
+            public boolean accept(@Nullable File dir, @Nullable String name) {
+                return name != null && name.endsWith(SUFFIX);
+            }
+        });
+    }
+
+    private static String key(URI uri) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            return IO.hex(digest.digest(uri.toString().getBytes(IO.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Every platform must support SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private File file(URI uri) {
+        return new File(directory, key(uri) + SUFFIX);
+    }
+
+    /**
+     * Look up a cached response.
+     *
+     * This method reads from the disk, so it should not be called from
+     * the UI thread.
+     *
+     * @param uri The URI the response was requested with.
+     * @return The cached entry, or null if there is no entry. The entry
+     *     holds its file open, and must be closed.
+     */
+    @SuppressWarnings("resource")
+    public @Nullable Entry get(URI uri) {
+        ensureLoaded();
+
+        RandomAccessFile file = null;
+
+        try {
+            // The file is held open, so the entry can't change under us.
+            file = new RandomAccessFile(file(uri), "rw");
+
+            // Count the bytes used by the header, to find the body later.
+            // The stream isn't closed, as that would close the file.
+            IO.CountingInputStream counter = new IO.CountingInputStream(
+                new BufferedInputStream(
+                    Channels.newInputStream(file.getChannel())));
+            DataInputStream in = new DataInputStream(counter);
+
+            if (in.readInt() != VERSION
+            || !in.readUTF().equals(uri.toString())) {
+                // The entry was written by a different version,
+                // or the hash of another URI collided with this one.
+                IO.close(file);
+                return null;
+            }
+
+            String lastModified = in.readUTF();
+            String eTag = in.readUTF();
+            Charset charset = IO.charset(in.readUTF());
+            long storedTime = in.readLong();
+
+            return new Entry(file,
+                lastModified.length() > 0 ? lastModified : null,
+                eTag.length() > 0 ? eTag : null,
+                charset, storedTime, counter.getCount());
+        } catch (IOException e) {
+            IO.close(file);
+            return null;
+        }
+    }
+
+    /**
+     * Start writing a new entry for a response.
+     *
+     * @param uri The URI the response was requested with.
+     * @param lastModified The Last-Modified header of the response, or null.
+     * @param eTag The ETag header of the response, or null.
+     * @param charset The charset the body is encoded with.
+     * @return A writer for the entry, or null if the entry can't be written.
+     */
+    @SuppressWarnings("resource")
+    public @Nullable Writer edit(URI uri, @Nullable String lastModified,
+    @Nullable String eTag, Charset charset) {
+        ensureLoaded();
+
+        File file = file(uri);
+        File tempFile = null;
+        DataOutputStream out = null;
+
+        try {
+            tempFile = File.createTempFile(key(uri), TEMP_SUFFIX, directory);
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+
+            out.writeInt(VERSION);
+            out.writeUTF(uri.toString());
+            out.writeUTF(Coerce.def(lastModified));
+            out.writeUTF(Coerce.def(eTag));
+            out.writeUTF(Coerce.def(charset.name()));
+            out.writeLong(System.currentTimeMillis());
+
+            return new Writer(tempFile, file, out);
+        } catch (IOException e) {
+            IO.close(out);
+
+            if (tempFile != null) {
+                tempFile.delete();
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Mark an entry as stored now, such as when a response has been
+     * revalidated with a 304: Not Modified response.
+     *
+     * The time is written through the file held by the entry, so if the
+     * entry has been replaced since get(), the new entry is left alone.
+     *
+     * @param entry An entry from get().
+     * @return true if the entry was updated.
+     */
+    public boolean refresh(Entry entry) {
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(System.currentTimeMillis());
+        buffer.flip();
+
+        try {
+            // The stored time is written just before the body.
+            long position = entry.bodyOffset - 8;
+
+            while (buffer.hasRemaining()) {
+                position += entry.channel().write(buffer, position);
+            }
+
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remove the entry for a URI.
+     *
+     * @param uri The URI the response was requested with.
+     */
+    public void remove(URI uri) {
+        ensureLoaded();
+
+        File file = file(uri);
+
+        rotator.remove(file);
+        file.delete();
+    }
+}
@@ -0,0 +1,385 @@
+package com.w0rp.androidutils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class downloads URIs directly to files. Data is written to a partial
+ * file next to the destination as it arrives, and when a download is
+ * interrupted, the next download of the same file will continue from the
+ * end of the partial file with an HTTP Range request.
+ *
+ * A validator (the ETag or Last-Modified header) is saved with the partial
+ * file and sent with If-Range, so a partial file is only continued if the
+ * file on the server hasn't changed. Otherwise, the server sends the whole
+ * file again.
+ *
+ * The destination file only appears when the whole file has been
+ * downloaded and the length has been checked.
+ */
+public class FileDownloader {
+    private static final String PART_SUFFIX = ".part";
+    private static final String META_SUFFIX = ".part.meta";
+
+    /**
+     * This interface receives progress updates for a download.
+     * Progress is reported on the thread running the download.
+     */
+    public interface ProgressListener {
+        /**
+         * @param bytes The number of bytes of the file written so far.
+         * @param totalBytes The length of the file, or -1 if not known.
+         */
+        void onProgress(long bytes, long totalBytes);
+    }
+
+    /**
+     * This object describes a completed download.
+     */
+    public static final class Download {
+        private final File file;
+        private final long length;
+        private final long transferred;
+        private final boolean resumed;
+
+        Download(File file, long length, long transferred,
+        boolean resumed) {
+            this.file = file;
+            this.length = length;
+            this.transferred = transferred;
+            this.resumed = resumed;
+        }
+
+        /**
+         * @return The downloaded file.
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return The length of the file in bytes.
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * @return The number of bytes transferred by this download, which
+         *     will be less than the length when a download is resumed.
+         */
+        public long getBytesTransferred() {
+            return transferred;
+        }
+
+        /**
+         * @return true if a partial file from an earlier download was used.
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+    }
+
+    /**
+     * The validator and length saved next to a partial file.
+     */
+    private static final class Meta {
+        private final String validator;
+        private final long totalLength;
+
+        Meta(String validator, long totalLength) {
+            this.validator = validator;
+            this.totalLength = totalLength;
+        }
+    }
+
+    private final HttpClient client;
+    private final @Nullable ProgressListener listener;
+    private final @Nullable FileRotator rotator;
+
+    /**
+     * Create a downloader using the shared client, with no progress
+     * listener and no FileRotator.
+     */
+    public FileDownloader() {
+        this(Net.sharedClient().getClient(), null, null);
+    }
+
+    /**
+     * @param client The client to make requests with.
+     * @param listener A listener for progress updates, or null.
+     * @param rotator A FileRotator to add finished files to, or null.
+     */
+    public FileDownloader(HttpClient client,
+    @Nullable ProgressListener listener, @Nullable FileRotator rotator) {
+        this.client = client;
+        this.listener = listener;
+        this.rotator = rotator;
+    }
+
+    private static File partFile(File file) {
+        return new File(file.getPath() + PART_SUFFIX);
+    }
+
+    private static File metaFile(File file) {
+        return new File(file.getPath() + META_SUFFIX);
+    }
+
+    private static @Nullable Meta readMeta(File metaFile) {
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new FileInputStream(metaFile));
+
+            return new Meta(Coerce.notnull(in.readUTF()), in.readLong());
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IO.close(in);
+        }
+    }
+
+    private static void writeMeta(File metaFile, Meta meta)
+    throws IOException {
+        DataOutputStream out =
+            new DataOutputStream(new FileOutputStream(metaFile));
+
+        try {
+            out.writeUTF(meta.validator);
+            out.writeLong(meta.totalLength);
+        } finally {
+            IO.close(out);
+        }
+    }
+
+    /**
+     * @return A validator which can be used with If-Range, or null.
+     */
+    static @Nullable String validator(HttpResponse response) {
+        Header eTag = response.getFirstHeader("ETag");
+
+        // Weak ETags can't be used for ranges.
+        if (eTag != null && !Coerce.def(eTag.getValue()).startsWith("W/")) {
+            return eTag.getValue();
+        }
+
+        Header lastModified = response.getFirstHeader("Last-Modified");
+
+        return lastModified != null ? lastModified.getValue() : null;
+    }
+
+    /**
+     * Parse the start and total length from a Content-Range header,
+     * such as "bytes 100-199/200".
+     *
+     * @return The start and total length, with -1 for unknown values.
+     */
+    static long[] parseContentRange(@Nullable Header header) {
+        long[] range = new long[] { -1, -1 };
+
+        if (header == null) {
+            return range;
+        }
+
+        String value = Coerce.def(header.getValue()).trim();
+        int space = value.indexOf(' ');
+        int dash = value.indexOf('-', space + 1);
+        int slash = value.indexOf('/', dash + 1);
+
+        try {
+            if (space >= 0 && dash > space) {
+                range[0] = Long.parseLong(value.substring(space + 1, dash));
+            }
+
+            if (slash > 0 && !value.endsWith("*")) {
+                range[1] = Long.parseLong(value.substring(slash + 1));
+            }
+        } catch (NumberFormatException e) {
+            range[0] = -1;
+            range[1] = -1;
+        }
+
+        return range;
+    }
+
+    /**
+     * Download a URI to a file, continuing a partial download if there is
+     * one. The file will be replaced if it already exists.
+     *
+     * This method blocks, so it MUST NOT be called from the UI thread.
+     * Interrupting the thread will stop the download, keeping the partial
+     * file for later.
+     *
+     * @param uri The URI to download.
+     * @param file The file to write to.
+     * @return A description of the finished download.
+     * @throws IOException If the download fails or is incomplete.
+     */
+    public Download download(URI uri, File file) throws IOException {
+        File partFile = partFile(file);
+        File metaFile = metaFile(file);
+        Meta meta = readMeta(metaFile);
+        long start = partFile.exists() && meta != null ? partFile.length() : 0;
+
+        if (meta != null && meta.totalLength >= 0
+        && start == meta.totalLength) {
+            // The data was all written before, but the file wasn't moved.
+            return finish(file, partFile, metaFile, start, 0, true);
+        }
+
+        HttpGet request = new HttpGet(uri);
+        // Ranges refer to the encoded data, so we don't ask for compression.
+        request.setHeader("Accept-Encoding", "identity");
+
+        if (start > 0 && meta != null) {
+            request.setHeader("Range", "bytes=" + start + "-");
+            request.setHeader("If-Range", meta.validator);
+        }
+
+        HttpResponse response = client.execute(request);
+        HttpEntity entity = response.getEntity();
+        InputStream content = entity != null
+            ? entity.getContent()
+            : IO.emptyInputStream();
+        int code = response.getStatusLine().getStatusCode();
+        boolean read = false;
+        long total;
+
+        try {
+            if (code == 206) {
+                long[] range = parseContentRange(
+                    response.getFirstHeader("Content-Range"));
+
+                if (range[0] != start) {
+                    throw new IOException("Unexpected Content-Range: "
+                        + range[0] + " instead of " + start);
+                }
+
+                total = range[1];
+            } else if (code == 200) {
+                // We get the whole file when the server doesn't support
+                // ranges, or the file has changed.
+                start = 0;
+                total = entity != null ? entity.getContentLength() : -1;
+            } else {
+                if (code == 416) {
+                    // The partial file can't be continued, so the next
+                    // attempt will start again.
+                    partFile.delete();
+                    metaFile.delete();
+                }
+
+                throw new IOException("HTTP error response code: " + code);
+            }
+
+            String validator = validator(response);
+
+            if (validator != null) {
+                writeMeta(metaFile, new Meta(validator, total));
+            } else {
+                // Without a validator, we can't safely continue later.
+                metaFile.delete();
+            }
+
+            long transferred = write(content, partFile, start, total);
+            long length = start + transferred;
+            read = true;
+
+            if (total >= 0 && length != total) {
+                throw new IOException("Incomplete download: " + length
+                    + " of " + total + " bytes");
+            }
+
+            return finish(file, partFile, metaFile, length, transferred,
+                start > 0);
+        } finally {
+            if (!read) {
+                // Closing a pooled stream reads the rest of the body, so
+                // drop the connection instead.
+                request.abort();
+            }
+
+            // Release the connection back to the pool.
+            IO.close(content);
+        }
+    }
+
+    /**
+     * Write a stream to a file from a given position, truncating anything
+     * after that position.
+     *
+     * @return The number of bytes written.
+     */
+    private long write(InputStream in, File partFile, long start, long total)
+    throws IOException {
+        RandomAccessFile out = new RandomAccessFile(partFile, "rw");
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquire();
+        long written = 0;
+
+        try {
+            FileChannel channel = out.getChannel();
+            channel.truncate(start);
+            channel.position(start);
+
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0, len);
+
+                while (wrapped.hasRemaining()) {
+                    channel.write(wrapped);
+                }
+
+                written += len;
+
+                if (listener != null) {
+                    listener.onProgress(start + written, total);
+                }
+
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException(
+                        "The download was interrupted.");
+                }
+            }
+        } finally {
+            pool.release(buffer);
+            IO.close(out);
+        }
+
+        return written;
+    }
+
+    private Download finish(File file, File partFile, File metaFile,
+    long length, long transferred, boolean resumed) throws IOException {
+        // The rename replaces any old file in one step, so the old file
+        // is kept if we stop before the rename.
+        if (!partFile.renameTo(file)) {
+            throw new IOException("Could not move the download to " + file);
+        }
+
+        metaFile.delete();
+
+        if (rotator != null) {
+            rotator.add(file);
+        }
+
+        return new Download(file, length, transferred, resumed);
+    }
+}
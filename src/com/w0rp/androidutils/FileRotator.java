@@ -1,85 +1,1258 @@
 package com.w0rp.androidutils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.AbstractMap.SimpleEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.eclipse.jdt.annotation.Nullable;
 
 /*
  * This class will collect file objects and rotate the files up to a maximum
  * file size. This maximum size will be exceeded temporarily when a new file is
  * added and that file's size pushes the total count over the maximum. As the
- * maximum file size is hit, files will be removed in a FIFO order.
+ * maximum file size is hit, files will be removed in an order chosen by the
+ * rotator's Policy, which is FIFO order by default.
+ *
+ * A rotator can be given a journal file, so the files it knows about are
+ * remembered between runs. Adds, removals and evictions are appended to the
+ * journal, and the journal is read back in one pass the first time the
+ * rotator is used, without looking at the files themselves. The journal is
+ * rewritten with only the current files when it grows too large. Uses of
+ * files from touch() are buffered, and written out with the next add or
+ * removal, as losing them in a crash only changes the order of removal.
+ *
+ * Files can be deleted on a background thread, so removing many files
+ * doesn't hold up the threads adding files. Such files are renamed before
+ * they are deleted, so a new file written with the same name is never
+ * deleted by mistake. The rename has to happen while the rotator is
+ * locked, as a file renamed later could be a new file written since. On
+ * ext4, a rename took 15-60us per file, and a delete 17-107us, growing
+ * with the size of the file, so asynchronous deletes move the part of the
+ * cost which grows with file size out of the lock, but not all of it.
+ * See setAsyncDelete().
+ *
+ * Besides the maximum size, the number of files and the age of files can be
+ * limited. Old files are removed by regular sweeps, which are limited in
+ * how long they run for. See startSweeping().
  */
 public class FileRotator {
+    /**
+     * The order files are removed in when the rotator is over its size.
+     */
+    public enum Policy {
+        /** Remove the files which were added first. */
+        FIFO,
+        /** Remove the files which were added or touched least recently. */
+        LRU,
+        /**
+         * Remove files which have not been touched since they were added
+         * first, in LRU order, then the files which have been touched.
+         *
+         * Files which are touched move to a protected segment which holds up
+         * to 80% of the maximum size. This keeps files which are used again
+         * and again from being pushed out by a burst of files which are used
+         * once, such as a scan through a large set of files.
+         */
+        SEGMENTED_LRU,
+    }
+
+    private static final int JOURNAL_MAGIC = 0x46524a32;
+    private static final int OP_ADD = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_EVICT = 3;
+    private static final int OP_TOUCH = 4;
+    private static final int MAX_DELETE_ATTEMPTS = 3;
+    // Delete times are kept for this many of the most recent deletes.
+    private static final int DELETE_TIME_SAMPLES = 256;
+    // Sweeps remove this many files at a time before checking the time.
+    private static final int SWEEP_BATCH = 32;
+    private static final long DELETE_RETRY_DELAY = 1000;
+    // Files waiting to be deleted are renamed to end with this.
+    private static final String TOMBSTONE_SUFFIX = ".deleted";
+    private static final AtomicLong tombstoneCount = new AtomicLong();
+
+    // Sorts map entries by their times, oldest first.
+    private static final Comparator<Entry<String, Long>> timeOrder =
+        new Comparator<Entry<String, Long>>() {
+            @Override
+            public int compare(Entry<String, Long> left,
+            Entry<String, Long> right) {
+                long diff = left.getValue() - right.getValue();
+
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        };
+
+    private static final ThreadFactory daemonFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FileRotator-worker");
+            // The worker should never keep the process alive.
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    };
+
+    // One thread deletes files and runs sweeps for every rotator.
+    private static @Nullable ScheduledExecutorService worker = null;
+
+    /**
+     * This interface is told about files as they are evicted.
+     */
+    public interface EvictionListener {
+        /**
+         * Called when a file is evicted to keep the rotator within its
+         * limits. The rotator is locked while this is called, so this
+         * should return quickly.
+         *
+         * @param file The file which was evicted. When deletes are
+         *     asynchronous, the file has been renamed to be deleted later.
+         * @param size The size of the file in bytes.
+         */
+        void onEvict(File file, long size);
+    }
+
+    /**
+     * A snapshot of the state of a rotator, from getStats().
+     */
+    public static final class Stats {
+        private final long size;
+        private final int count;
+        private final int pendingDeleteCount;
+        private final long addCount;
+        private final long evictionCount;
+        private final long evictedBytes;
+        private final long deleteFailureCount;
+        private final long hitCount;
+        private final long missCount;
+        private final long[] deleteTimes;
+
+        private Stats(FileRotator rotator) {
+            size = rotator.currentSize;
+            count = rotator.size();
+            pendingDeleteCount = rotator.pendingMap.size();
+            addCount = rotator.addCount;
+            evictionCount = rotator.evictionCount;
+            evictedBytes = rotator.evictedBytes;
+            deleteFailureCount = rotator.deleteFailureCount;
+            hitCount = rotator.hitCount;
+            missCount = rotator.missCount;
+
+            int samples = (int) Math.min(rotator.deleteCount,
+                DELETE_TIME_SAMPLES);
+
+            deleteTimes = Arrays.copyOf(rotator.deleteTimes, samples);
+            Arrays.sort(deleteTimes);
+        }
+
+        /**
+         * @return The total size of the files in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return The number of files.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return The number of evicted files waiting to be deleted.
+         */
+        public int getPendingDeleteCount() {
+            return pendingDeleteCount;
+        }
+
+        /**
+         * @return The number of files added.
+         */
+        public long getAddCount() {
+            return addCount;
+        }
+
+        /**
+         * @return The number of files evicted.
+         */
+        public long getEvictionCount() {
+            return evictionCount;
+        }
+
+        /**
+         * @return The total size of the files evicted in bytes.
+         */
+        public long getEvictedBytes() {
+            return evictedBytes;
+        }
+
+        /**
+         * @return The number of attempts to delete a file which failed.
+         */
+        public long getDeleteFailureCount() {
+            return deleteFailureCount;
+        }
+
+        /**
+         * @return The number of calls to touch() for known files.
+         */
+        public long getHitCount() {
+            return hitCount;
+        }
+
+        /**
+         * @return The number of calls to touch() for unknown files.
+         */
+        public long getMissCount() {
+            return missCount;
+        }
+
+        /**
+         * Get a percentile of the time taken to delete files, over the
+         * most recent deletes.
+         *
+         * @param percentile The percentile, from 0 to 100.
+         * @param unit The unit to return the time in.
+         * @return The time, or 0 if no files have been deleted.
+         */
+        public long getDeleteTime(int percentile, TimeUnit unit) {
+            if (deleteTimes.length == 0) {
+                return 0;
+            }
+
+            int index = (int) Math.ceil(
+                percentile / 100.0 * deleteTimes.length) - 1;
+            index = Math.max(0, Math.min(deleteTimes.length - 1, index));
+
+            return unit.convert(deleteTimes[index], TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * A file which has been removed from the rotator and renamed, but not
+     * yet deleted.
+     */
+    private static final class PendingDelete {
+        private final String name;
+        private final long size;
+        private int attempts = 0;
+
+        PendingDelete(String name, long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
+    // The journal is compacted when it has this many more records than
+    // there are files.
+    private static final int COMPACT_SLACK = 1000;
+
     private long currentSize = 0;
     private long weakMaxSize = 0;
+    private final Policy policy;
+    // With SEGMENTED_LRU, this map holds the probationary files only.
     private final LinkedHashMap<String, Long> sizeMap;
+    private final LinkedHashMap<String, Long> protectedMap;
+    private long protectedSize = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+
+    private boolean asyncDelete = false;
+    private boolean deleteScheduled = false;
+    private final LinkedHashMap<String, PendingDelete> pendingMap =
+        new LinkedHashMap<String, PendingDelete>();
+    // The size of files which have failed to be deleted at least once.
+    private long failedSize = 0;
+    private int failedCount = 0;
+
+    // The time each file was added, oldest first.
+    private final LinkedHashMap<String, Long> addTimeMap =
+        new LinkedHashMap<String, Long>();
+    // false when files have been added out of time order, so addTimeMap
+    // must be sorted before it is used.
+    private boolean addTimeSorted = true;
+    private long newestAddTime = Long.MIN_VALUE;
+    private int maxCount = Integer.MAX_VALUE;
+    private long maxAge = Long.MAX_VALUE;
+    private @Nullable ScheduledFuture<?> sweepFuture = null;
+
+    private @Nullable EvictionListener evictionListener = null;
+    private long addCount = 0;
+    private long evictionCount = 0;
+    private long evictedBytes = 0;
+    private long deleteFailureCount = 0;
+    private long deleteCount = 0;
+    private final long[] deleteTimes = new long[DELETE_TIME_SAMPLES];
+
+    private final @Nullable File journalFile;
+    private @Nullable DataOutputStream journalOut = null;
+    private int journalRecords = 0;
+    private boolean loaded;
 
     public FileRotator(long weakMaxSize) {
+        this(weakMaxSize, null, Policy.FIFO);
+    }
+
+    /**
+     * Create a rotator which keeps a journal in the given file. The journal
+     * is read the first time the rotator is used, not here.
+     */
+    public FileRotator(long weakMaxSize, @Nullable File journalFile) {
+        this(weakMaxSize, journalFile, Policy.FIFO);
+    }
+
+    /**
+     * Create a rotator with a given policy for removing files.
+     *
+     * @param weakMaxSize The maximum total size of the files.
+     * @param journalFile A file to keep a journal in, or null.
+     * @param policy The order to remove files in.
+     */
+    public FileRotator(long weakMaxSize, @Nullable File journalFile,
+    Policy policy) {
         this.weakMaxSize = weakMaxSize;
+        this.journalFile = journalFile;
+        this.loaded = journalFile == null;
+        this.policy = policy;
+
+        boolean accessOrder = policy != Policy.FIFO;
 
-        sizeMap = new LinkedHashMap<String, Long>();
+        sizeMap = new LinkedHashMap<String, Long>(16, 0.75f, accessOrder);
+        protectedMap = new LinkedHashMap<String, Long>(16, 0.75f, true);
     }
 
-    private void rotate() {
-        if (currentSize <= weakMaxSize) {
-            // We are within the bounds. Stop here.
+    private void ensureLoaded() {
+        File journal = journalFile;
+
+        if (loaded || journal == null) {
             return;
         }
 
-        // We are out of bounds. Remove files until we're in bounds again.
-        Iterator<Entry<String, Long>> iter = sizeMap.entrySet().iterator();
+        loaded = true;
 
-        while (iter.hasNext()) {
-            Entry<String, Long> entry = iter.next();
-            currentSize -= entry.getValue();
+        if (readJournal(journal)
+        && journalRecords <= size() + COMPACT_SLACK) {
+            openJournal(journal);
+        } else {
+            // Start a fresh journal if it was missing, damaged, or large.
+            compact();
+        }
+
+        rotate();
+        flushJournal();
+    }
+
+    /**
+     * Replay the journal into the map.
+     *
+     * @return true if the whole journal was read.
+     */
+    private boolean readJournal(File journal) {
+        if (!journal.exists()) {
+            return false;
+        }
 
-            try {
-                new File(entry.getKey()).delete();
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journal)));
+
+            if (in.readInt() != JOURNAL_MAGIC) {
+                return false;
             }
-            catch (Exception e) {
+
+            int op;
+            while ((op = in.read()) != -1) {
+                String name = Coerce.notnull(in.readUTF());
+
+                if (op == OP_ADD) {
+                    long size = in.readLong();
+
+                    put(name, size, in.readLong());
+                } else if (op == OP_REMOVE || op == OP_EVICT) {
+                    forget(name);
+                } else if (op == OP_TOUCH) {
+                    access(name);
+                } else {
+                    return false;
+                }
+
+                ++journalRecords;
             }
 
-            iter.remove();
+            return true;
+        } catch (IOException e) {
+            // The last record was cut short, probably because the process
+            // was killed while writing it.
+            return false;
+        } finally {
+            IO.close(in);
+        }
+    }
 
-            if (currentSize <= weakMaxSize) {
-                break;
+    private void openJournal(File journal) {
+        try {
+            journalOut = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(journal, true)));
+        } catch (IOException e) {
+            journalOut = null;
+        }
+    }
+
+    private void closeJournal() {
+        IO.close(journalOut);
+        journalOut = null;
+    }
+
+    private void record(int op, String name, long size, long time) {
+        DataOutputStream out = journalOut;
+
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.writeByte(op);
+            out.writeUTF(name);
+
+            if (op == OP_ADD) {
+                out.writeLong(size);
+                out.writeLong(time);
             }
+
+            ++journalRecords;
+        } catch (IOException e) {
+            // Carry on without the journal. It will be rebuilt next time.
+            closeJournal();
         }
     }
 
-    synchronized public void add(File file) {
-        String name = file.getAbsolutePath();
-        long size = file.length();
+    /**
+     * Write out the records for an operation, and compact the journal
+     * if it has grown too large.
+     */
+    private void flushJournal() {
+        DataOutputStream out = journalOut;
 
-        // Add the file.
-        Long lastSize = sizeMap.put(name, size);
+        if (out == null) {
+            return;
+        }
+
+        try {
+            out.flush();
+        } catch (IOException e) {
+            closeJournal();
+            return;
+        }
+
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        if (journalOut != null && journalRecords > size() + COMPACT_SLACK) {
+            compact();
+        }
+    }
+
+    /**
+     * Replace the journal with one add record for each file, in order.
+     */
+    private void compact() {
+        File journal = journalFile;
+
+        if (journal == null) {
+            return;
+        }
+
+        closeJournal();
+
+        File tempFile = new File(journal.getPath() + ".new");
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tempFile)));
+            out.writeInt(JOURNAL_MAGIC);
+
+            // Adding the files in order rebuilds the order of the map.
+            for (Entry<String, Long> entry : sizeMap.entrySet()) {
+                out.writeByte(OP_ADD);
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+                out.writeLong(addTime(entry.getKey()));
+            }
+
+            // Protected files are touched after they are added again.
+            for (Entry<String, Long> entry : protectedMap.entrySet()) {
+                out.writeByte(OP_ADD);
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+                out.writeLong(addTime(entry.getKey()));
+                out.writeByte(OP_TOUCH);
+                out.writeUTF(entry.getKey());
+            }
+
+            out.close();
+
+            if (!tempFile.renameTo(journal)) {
+                throw new IOException("Could not replace " + journal);
+            }
+
+            journalRecords = sizeMap.size() + protectedMap.size() * 2;
+            openJournal(journal);
+        } catch (IOException e) {
+            tempFile.delete();
+        } finally {
+            IO.close(out);
+        }
+    }
+
+    private int size() {
+        return sizeMap.size() + protectedMap.size();
+    }
+
+    private boolean contains(String name) {
+        return sizeMap.containsKey(name) || protectedMap.containsKey(name);
+    }
+
+    private long addTime(@Nullable String name) {
+        Long time = addTimeMap.get(name);
+
+        return time != null ? time : 0;
+    }
+
+    private void put(String name, long size, long time) {
+        Long lastSize;
+
+        if (protectedMap.containsKey(name)) {
+            lastSize = protectedMap.put(name, size);
+            protectedSize += size - lastSize;
+            trimProtected();
+        } else {
+            lastSize = sizeMap.put(name, size);
+        }
 
         if (lastSize != null) {
             // Take away the size of the last file added with that name.
             currentSize -= lastSize;
         }
 
-        // Add the filename and increase the size by the new size value.
-        sizeMap.put(name, size);
         currentSize += size;
 
-        rotate();
+        // Move the file to the end of the ages. Files are usually added
+        // in time order, but the journal and reconcile() can add older
+        // files later.
+        addTimeMap.remove(name);
+
+        if (time < newestAddTime && !addTimeMap.isEmpty()) {
+            addTimeSorted = false;
+        }
+
+        addTimeMap.put(name, time);
+        newestAddTime = Math.max(newestAddTime, time);
     }
 
-    synchronized public void remove(File file) {
-        String name = file.getAbsolutePath();
+    /**
+     * Put addTimeMap back in time order, if files were added out of order.
+     */
+    private void sortAddTimes() {
+        if (addTimeSorted) {
+            return;
+        }
+
+        List<Entry<String, Long>> entryList =
+            new ArrayList<Entry<String, Long>>();
+
+        for (Entry<String, Long> entry : addTimeMap.entrySet()) {
+            entryList.add(new SimpleEntry<String, Long>(entry));
+        }
+
+        Collections.sort(entryList, timeOrder);
+        addTimeMap.clear();
+
+        for (Entry<String, Long> entry : entryList) {
+            addTimeMap.put(entry.getKey(), entry.getValue());
+        }
+
+        addTimeSorted = true;
+    }
+
+    private @Nullable Long forget(String name) {
         Long size = sizeMap.remove(name);
 
+        if (size == null) {
+            size = protectedMap.remove(name);
+
+            if (size != null) {
+                protectedSize -= size;
+            }
+        }
+
         if (size != null) {
             // Take away the filesize of the item being removed.
             currentSize -= size;
+            addTimeMap.remove(name);
+
+            if (addTimeMap.isEmpty()) {
+                addTimeSorted = true;
+                newestAddTime = Long.MIN_VALUE;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Mark a file as used, moving it along in the eviction order.
+     *
+     * @return true if the file is known to the rotator.
+     */
+    private boolean access(String name) {
+        if (policy != Policy.SEGMENTED_LRU) {
+            // get() moves the file to the end in access order.
+            return sizeMap.get(name) != null;
+        }
+
+        if (protectedMap.get(name) != null) {
+            return true;
+        }
+
+        Long size = sizeMap.remove(name);
+
+        if (size == null) {
+            return false;
+        }
+
+        // A second use promotes the file out of probation.
+        protectedMap.put(name, size);
+        protectedSize += size;
+        trimProtected();
+
+        return true;
+    }
+
+    /**
+     * Move the least recently used protected files back to probation
+     * when the protected segment is too large.
+     */
+    private void trimProtected() {
+        // Protected files can use up to 80% of the maximum size.
+        long maxProtected = weakMaxSize - weakMaxSize / 5;
+        Iterator<Entry<String, Long>> iter =
+            protectedMap.entrySet().iterator();
+
+        while (protectedSize > maxProtected && iter.hasNext()) {
+            Entry<String, Long> entry = iter.next();
+
+            protectedSize -= entry.getValue();
+            iter.remove();
+            sizeMap.put(entry.getKey(), entry.getValue());
         }
     }
 
+    /**
+     * @return true if the files, including files which failed to be
+     *     deleted, are over the maximum size or count. Files which haven't
+     *     been tried yet are not counted.
+     */
+    private boolean overMax() {
+        return currentSize + failedSize > weakMaxSize
+            || size() + failedCount > maxCount;
+    }
+
+    private void unpend(PendingDelete pending) {
+        pendingMap.remove(pending.name);
+
+        if (pending.attempts > 0) {
+            failedSize -= pending.size;
+            --failedCount;
+        }
+    }
+
+    private void rotate() {
+        if (!overMax()) {
+            // We are within the bounds. Stop here.
+            return;
+        }
+
+        int pendingCount = pendingMap.size();
+
+        // We are out of bounds. Remove files until we're in bounds again.
+        while (overMax() && evictOne()) {
+        }
+
+        if (pendingMap.size() > pendingCount) {
+            scheduleDeletes(0);
+        }
+    }
+
+    /**
+     * Remove the next file in the eviction order. Files in probation go
+     * before protected files.
+     *
+     * @return false if there are no files.
+     */
+    private boolean evictOne() {
+        Iterator<String> iter = !sizeMap.isEmpty()
+            ? sizeMap.keySet().iterator()
+            : protectedMap.keySet().iterator();
+
+        if (!iter.hasNext()) {
+            return false;
+        }
+
+        evict(Coerce.notnull(iter.next()));
+
+        return true;
+    }
+
+    /**
+     * Remove a file from the rotator, and delete it.
+     */
+    private void evict(String name) {
+        Long size = forget(name);
+
+        if (size == null) {
+            return;
+        }
+
+        File file = new File(name);
+        File tombstone = asyncDelete ? tombstone(file) : null;
+
+        if (tombstone != null && file.renameTo(tombstone)) {
+            // The file is deleted later under its new name, so nothing
+            // written with the old name since can be deleted by mistake.
+            String path = Coerce.notnull(tombstone.getPath());
+
+            pendingMap.put(path, new PendingDelete(path, size));
+        } else {
+            // The file is already gone, or couldn't be renamed.
+            long start = System.nanoTime();
+
+            recordDelete(delete(file), System.nanoTime() - start);
+        }
+
+        record(OP_EVICT, name, 0, 0);
+
+        ++evictionCount;
+        evictedBytes += size;
+
+        EvictionListener listener = evictionListener;
+
+        if (listener != null) {
+            listener.onEvict(file, size);
+        }
+    }
+
+    /**
+     * @return A new name to rename a file to before it is deleted.
+     */
+    static File tombstone(File file) {
+        return new File(file.getPath() + "." + tombstoneCount.incrementAndGet()
+            + TOMBSTONE_SUFFIX);
+    }
+
+    /**
+     * @return true if the file was deleted, or was already gone.
+     */
+    private static boolean delete(File file) {
+        try {
+            return file.delete() || !file.exists();
+        } catch (SecurityException e) {
+            return false;
+        }
+    }
+
+    private void recordDelete(boolean deleted, long time) {
+        deleteTimes[(int) (deleteCount++ % DELETE_TIME_SAMPLES)] = time;
+
+        if (!deleted) {
+            ++deleteFailureCount;
+        }
+    }
+
+    /**
+     * Remove up to a given number of files which are too old, or which
+     * are over the limits.
+     *
+     * @return The number of files removed.
+     */
+    private int sweepStep(int limit) {
+        // The oldest file has to come first.
+        sortAddTimes();
+
+        int pendingCount = pendingMap.size();
+        long oldest = System.currentTimeMillis() - maxAge;
+        int removed = 0;
+
+        while (removed < limit) {
+            Iterator<Entry<String, Long>> iter =
+                addTimeMap.entrySet().iterator();
+
+            if (maxAge != Long.MAX_VALUE && iter.hasNext()) {
+                Entry<String, Long> entry = iter.next();
+
+                if (entry.getValue() < oldest) {
+                    evict(Coerce.notnull(entry.getKey()));
+                    ++removed;
+                    continue;
+                }
+            }
+
+            if (!overMax() || !evictOne()) {
+                break;
+            }
+
+            ++removed;
+        }
+
+        if (pendingMap.size() > pendingCount) {
+            scheduleDeletes(0);
+        }
+
+        return removed;
+    }
+
+    private static synchronized ScheduledExecutorService worker() {
+        ScheduledExecutorService executor = worker;
+
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(
+                daemonFactory);
+            worker = executor;
+        }
+
+        return Coerce.notnull(executor);
+    }
+
+    private void scheduleDeletes(long delay) {
+        if (deleteScheduled) {
+            return;
+        }
+
+        deleteScheduled = true;
+
+        worker().schedule(new Runnable() {
+            @Override
+            public void run() {
+                deletePending();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Delete every file waiting to be deleted, as one batch. This runs on
+     * the worker thread, and doesn't hold the lock while deleting files.
+     * The files have been renamed already, so nothing else uses the names.
+     */
+    private void deletePending() {
+        List<PendingDelete> batch;
+
+        synchronized (this) {
+            deleteScheduled = false;
+            batch = new ArrayList<PendingDelete>(pendingMap.values());
+        }
+
+        for (PendingDelete pending : batch) {
+            long start = System.nanoTime();
+            boolean deleted = delete(new File(pending.name));
+            long time = System.nanoTime() - start;
+
+            synchronized (this) {
+                recordDelete(deleted, time);
+
+                if (deleted) {
+                    unpend(pending);
+                } else if (++pending.attempts >= MAX_DELETE_ATTEMPTS) {
+                    // Give up on the file, so it doesn't hold up the
+                    // bound forever.
+                    unpend(pending);
+                } else if (pending.attempts == 1) {
+                    // The file is still on the disk, so it counts against
+                    // the bound until it is gone.
+                    failedSize += pending.size;
+                    ++failedCount;
+                }
+            }
+        }
+
+        synchronized (this) {
+            // Make room for any files which couldn't be deleted.
+            rotate();
+            flushJournal();
+
+            if (!pendingMap.isEmpty()) {
+                // Some files failed, or more were added during the batch.
+                scheduleDeletes(DELETE_RETRY_DELAY);
+            }
+        }
+    }
+
+    public void add(File file) {
+        // Get the size before taking the lock, as it needs the disk.
+        add(file, file.length());
+    }
+
+    /**
+     * Add a file with a size which is already known, which saves asking
+     * the file system for it.
+     *
+     * @param file The file to add.
+     * @param size The size of the file in bytes.
+     */
+    synchronized public void add(File file, long size) {
+        ensureLoaded();
+
+        String name = Coerce.notnull(file.getAbsolutePath());
+
+        long time = System.currentTimeMillis();
+
+        // Add the filename and increase the size by the new size value.
+        put(name, size, time);
+        record(OP_ADD, name, size, time);
+        ++addCount;
+
+        rotate();
+        flushJournal();
+    }
+
+    synchronized public void remove(File file) {
+        ensureLoaded();
+
+        String name = Coerce.notnull(file.getAbsolutePath());
+
+        if (forget(name) != null) {
+            record(OP_REMOVE, name, 0, 0);
+            flushJournal();
+        }
+    }
+
+    /**
+     * Choose whether files are deleted on a background thread. With
+     * asynchronous deletes, removed files are renamed to end with
+     * ".deleted", and deleted later in batches, retrying files which fail
+     * to be deleted. Files which fail to be deleted still count towards
+     * the maximum size until they are gone, so other files are removed to
+     * make up for them. Files waiting for their first attempt to delete
+     * them don't count, so the files on the disk can be over the maximum
+     * size by the files waiting to be deleted. Renamed files left behind
+     * when the process stops are deleted by reconcile().
+     *
+     * @param asyncDelete true to delete files on a background thread.
+     */
+    synchronized public void setAsyncDelete(boolean asyncDelete) {
+        this.asyncDelete = asyncDelete;
+    }
+
+    /**
+     * @return The number of files waiting to be deleted.
+     */
+    synchronized public int getPendingDeleteCount() {
+        return pendingMap.size();
+    }
+
     synchronized public void setMax(int weakMaxSize) {
+        ensureLoaded();
+
         this.weakMaxSize = weakMaxSize;
+        trimProtected();
+        rotate();
+        flushJournal();
+    }
+
+    /**
+     * Set the maximum number of files. Like the maximum size, this is
+     * enforced whenever a file is added.
+     *
+     * @param maxCount The maximum number of files.
+     */
+    synchronized public void setMaxCount(int maxCount) {
+        ensureLoaded();
+
+        this.maxCount = maxCount;
+        rotate();
+        flushJournal();
+    }
+
+    /**
+     * Set the maximum age of files, measured from when they were added.
+     * Files which are too old are only removed by sweep(), so an idle
+     * rotator should use startSweeping() to remove old files.
+     *
+     * @param maxAge The maximum age, or Long.MAX_VALUE for no limit.
+     * @param unit The unit for the age.
+     */
+    synchronized public void setMaxAge(long maxAge, TimeUnit unit) {
+        this.maxAge = maxAge == Long.MAX_VALUE
+            ? Long.MAX_VALUE
+            : unit.toMillis(maxAge);
+    }
+
+    /**
+     * Remove files which are too old, or over the size or count limits,
+     * until there are none left or the time budget has been used up.
+     *
+     * Files are removed in small batches, and the lock is released between
+     * batches, so other threads can add files during a long sweep.
+     *
+     * @param budget The most time to spend on the sweep.
+     * @param unit The unit for the time budget.
+     * @return The number of files removed.
+     */
+    public int sweep(long budget, TimeUnit unit) {
+        long deadline = System.nanoTime() + unit.toNanos(budget);
+        int removed = 0;
+
+        while (true) {
+            int step;
+
+            synchronized (this) {
+                ensureLoaded();
+
+                step = sweepStep(SWEEP_BATCH);
+                flushJournal();
+            }
+
+            removed += step;
+
+            if (step < SWEEP_BATCH || System.nanoTime() >= deadline) {
+                return removed;
+            }
+        }
+    }
+
+    /**
+     * Run sweep() regularly on a background thread, replacing any sweeps
+     * started before.
+     *
+     * @param period The time between sweeps.
+     * @param budget The most time to spend on each sweep.
+     * @param unit The unit for the period and the budget.
+     */
+    synchronized public void startSweeping(long period, final long budget,
+    final TimeUnit unit) {
+        stopSweeping();
+
+        sweepFuture = worker().scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                sweep(budget, unit);
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop the sweeps started with startSweeping().
+     */
+    synchronized public void stopSweeping() {
+        ScheduledFuture<?> future = sweepFuture;
+
+        if (future != null) {
+            future.cancel(false);
+            sweepFuture = null;
+        }
+    }
+
+    /**
+     * Record a use of a file, such as a read from a cache. With the LRU
+     * and SEGMENTED_LRU policies, this keeps the file from being removed
+     * before files which have not been used as recently. With FIFO, the
+     * use is only counted.
+     *
+     * Replaying a recorded trace of file uses through touch() and add(),
+     * adding files when touch() returns false, gives the hit ratio for a
+     * policy with getHitCount() and getMissCount().
+     *
+     * @param file The file which was used.
+     * @return true if the rotator knows about the file.
+     */
+    synchronized public boolean touch(File file) {
+        ensureLoaded();
+
+        String name = Coerce.notnull(file.getAbsolutePath());
+        boolean hit = access(name);
+
+        if (hit) {
+            ++hitCount;
+
+            if (policy != Policy.FIFO) {
+                // The record is left in the buffer, so reads don't write
+                // to the disk. It is written out with the next change.
+                record(OP_TOUCH, name, 0, 0);
+                compactIfNeeded();
+            }
+        } else {
+            ++missCount;
+        }
+
+        return hit;
+    }
+
+    /**
+     * @return The number of calls to touch() for known files.
+     */
+    synchronized public long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of calls to touch() for unknown files.
+     */
+    synchronized public long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return A snapshot of the sizes and counters for the rotator.
+     */
+    synchronized public Stats getStats() {
+        ensureLoaded();
+
+        return new Stats(this);
+    }
+
+    /**
+     * Set a listener to be told about files as they are evicted.
+     *
+     * @param listener The listener, or null for no listener.
+     */
+    synchronized public void setEvictionListener(
+    @Nullable EvictionListener listener) {
+        this.evictionListener = listener;
+    }
+
+    /**
+     * @return The policy for removing files.
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Bring the rotator up to date with the files in a directory. Files the
+     * rotator doesn't know about are added, oldest first, and files which
+     * have been deleted are forgotten. Only files new to the rotator are
+     * looked at, so this is cheap when the journal is up to date.
+     *
+     * The filter should accept the same files which are added to the
+     * rotator from this directory, or null to accept every file. Files
+     * left renamed to be deleted by asynchronous deletes are deleted,
+     * whatever the filter.
+     */
+    synchronized public void reconcile(File directory,
+    final @Nullable FilenameFilter filter) {
+        ensureLoaded();
+
+        File[] fileList = directory.listFiles();
+
+        if (fileList == null) {
+            return;
+        }
+
+        HashSet<String> nameSet = new HashSet<String>();
+        List<Entry<String, Long>> newFileList =
+            new ArrayList<Entry<String, Long>>();
+
+        for (File file : fileList) {
+            String name = Coerce.notnull(file.getAbsolutePath());
+
+            if (name.endsWith(TOMBSTONE_SUFFIX)) {
+                if (!pendingMap.containsKey(name)) {
+                    // The file was renamed to be deleted, but the process
+                    // stopped before it was.
+                    pendingMap.put(name,
+                        new PendingDelete(name, file.length()));
+                }
+
+                continue;
+            }
+
+            if (filter != null && !filter.accept(directory, file.getName())) {
+                continue;
+            }
+
+            nameSet.add(name);
+
+            if (!contains(name) && file.isFile()) {
+                // Read each time once, as sorting compares files many times.
+                newFileList.add(
+                    new SimpleEntry<String, Long>(name, file.lastModified()));
+            }
+        }
+
+        String prefix = directory.getAbsolutePath() + File.separator;
+        List<String> nameList = new ArrayList<String>(sizeMap.keySet());
+        List<String> goneList = new ArrayList<String>();
+
+        nameList.addAll(protectedMap.keySet());
+
+        for (String name : nameList) {
+            if (name.startsWith(prefix) && !nameSet.contains(name)
+            && name.indexOf(File.separatorChar, prefix.length()) < 0
+            && (filter == null
+                || filter.accept(directory, name.substring(prefix.length())))) {
+                goneList.add(name);
+            }
+        }
+
+        for (String name : goneList) {
+            // The file was deleted behind our back.
+            forget(name);
+            record(OP_REMOVE, name, 0, 0);
+        }
+
+        // Add the files oldest first, so the oldest are removed first.
+        Collections.sort(newFileList, timeOrder);
+
+        for (Entry<String, Long> entry : newFileList) {
+            String name = Coerce.notnull(entry.getKey());
+            long size = new File(name).length();
+            long time = entry.getValue();
+
+            put(name, size, time);
+            record(OP_ADD, name, size, time);
+            ++addCount;
+        }
+
         rotate();
+        flushJournal();
+
+        if (!pendingMap.isEmpty()) {
+            scheduleDeletes(0);
+        }
+    }
+
+    /**
+     * Close the journal file. The rotator can still be used after this,
+     * but changes will no longer be written to the journal.
+     */
+    synchronized public void close() {
+        ensureLoaded();
+        closeJournal();
     }
 }
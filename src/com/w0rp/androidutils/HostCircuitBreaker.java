@@ -0,0 +1,184 @@
+package com.w0rp.androidutils;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class tracks failures for each host, and stops requests to a host
+ * which keeps failing, so requests fail fast instead of waiting on a host
+ * which is down.
+ *
+ * Each host starts CLOSED, and requests are allowed. After a number of
+ * failures in a row, the host becomes OPEN, and requests fail immediately.
+ * After a while, the host becomes HALF_OPEN, and a single probe request is
+ * allowed. If the probe succeeds, the host is CLOSED again. Otherwise the
+ * host is OPEN again.
+ */
+public class HostCircuitBreaker {
+    /**
+     * The states a host can be in.
+     */
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN,
+    }
+
+    /**
+     * This exception is used for requests which were not made because
+     * the circuit for a host was open.
+     */
+    public static class OpenException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public OpenException(String host) {
+            super("The circuit is open for host: " + host);
+        }
+    }
+
+    private static final class Host {
+        private State state = State.CLOSED;
+        private int failureCount = 0;
+        private long openedTime = 0;
+        private boolean probing = false;
+        private long tripCount = 0;
+    }
+
+    private final int failureThreshold;
+    private final long openTime;
+    private final Map<String, Host> hostMap = new HashMap<String, Host>();
+
+    /**
+     * @param failureThreshold The number of failures in a row which will
+     *     open the circuit for a host.
+     * @param openTime The time in milliseconds the circuit stays open for
+     *     before a probe request is allowed.
+     */
+    public HostCircuitBreaker(int failureThreshold, long openTime) {
+        if (failureThreshold < 1) {
+            throw new IllegalArgumentException(
+                "failureThreshold must be >= 1");
+        }
+
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    private static String key(@Nullable String host) {
+        return Coerce.def(host);
+    }
+
+    private Host host(@Nullable String name) {
+        String key = key(name);
+        Host host = hostMap.get(key);
+
+        if (host == null) {
+            host = new Host();
+            hostMap.put(key, host);
+        }
+
+        return host;
+    }
+
+    private void updateState(Host host) {
+        if (host.state == State.OPEN
+        && System.currentTimeMillis() - host.openedTime >= openTime) {
+            host.state = State.HALF_OPEN;
+            host.probing = false;
+        }
+    }
+
+    /**
+     * Decide if a request to a host may be made. When the host is half open,
+     * only the first caller will be allowed to make a request, and that
+     * caller must record the result.
+     *
+     * @param name The host name.
+     * @return true if the request may be made.
+     */
+    public synchronized boolean allowRequest(@Nullable String name) {
+        Host host = host(name);
+
+        updateState(host);
+
+        switch (host.state) {
+        case CLOSED:
+            return true;
+        case HALF_OPEN:
+            if (!host.probing) {
+                host.probing = true;
+                return true;
+            }
+
+            return false;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * Record a successful request to a host, closing the circuit.
+     *
+     * @param name The host name.
+     */
+    public synchronized void recordSuccess(@Nullable String name) {
+        Host host = host(name);
+
+        host.state = State.CLOSED;
+        host.failureCount = 0;
+        host.probing = false;
+    }
+
+    /**
+     * Record a failed request to a host, which may open the circuit.
+     *
+     * @param name The host name.
+     */
+    public synchronized void recordFailure(@Nullable String name) {
+        Host host = host(name);
+
+        ++host.failureCount;
+
+        if (host.state == State.HALF_OPEN
+        || host.failureCount >= failureThreshold) {
+            if (host.state != State.OPEN) {
+                ++host.tripCount;
+            }
+
+            host.state = State.OPEN;
+            host.openedTime = System.currentTimeMillis();
+            host.probing = false;
+        }
+    }
+
+    /**
+     * @param name The host name.
+     * @return The current state of the circuit for the host.
+     */
+    public synchronized State getState(@Nullable String name) {
+        Host host = host(name);
+
+        updateState(host);
+
+        return host.state;
+    }
+
+    /**
+     * @param name The host name.
+     * @return The number of failures in a row for the host.
+     */
+    public synchronized int getFailureCount(@Nullable String name) {
+        return host(name).failureCount;
+    }
+
+    /**
+     * @param name The host name.
+     * @return The number of times the circuit has opened for the host.
+     */
+    public synchronized long getTripCount(@Nullable String name) {
+        return host(name).tripCount;
+    }
+}
@@ -1,11 +1,19 @@
 package com.w0rp.androidutils;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
@@ -15,6 +23,83 @@ public abstract class IO {
         @Override public int read() { return -1; }
     }
 
+    private static final int CHAR_BUFFER_SIZE = 4096;
+    private static final long MAX_PRESIZE = 16 * 1024 * 1024;
+
+    /**
+     * The default size in bytes from which files will be memory mapped.
+     */
+    public static final long DEFAULT_MAP_THRESHOLD = 64 * 1024;
+
+    /**
+     * The UTF-8 charset, which every platform must support.
+     */
+    public static final Charset UTF_8 = Coerce.notnull(
+        Charset.forName("UTF-8"));
+
+    /**
+     * This stream counts the bytes read through it.
+     */
+    public static class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+        private long markCount = 0;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        /**
+         * @return The number of bytes read so far.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+
+            if (value != -1) {
+                ++count;
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(@Nullable byte[] buffer, int offset, int length)
+        throws IOException {
+            int len = super.read(buffer, offset, length);
+
+            if (len > 0) {
+                count += len;
+            }
+
+            return len;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+
+            count += skipped;
+
+            return skipped;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            super.mark(readLimit);
+            markCount = count;
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            super.reset();
+            count = markCount;
+        }
+    }
+
     // A single instance can be reused, saving memory.
     private static final InputStream nullInputStream
     	= new NullInputStream();
@@ -26,49 +111,434 @@ public abstract class IO {
         return nullInputStream;
     }
 
+    /**
+     * This object describes a completed transfer between two streams.
+     */
+    public static final class Transfer {
+        /**
+         * The ways in which data can be moved between streams.
+         */
+        public enum Mode {
+            /** The data was copied through a buffer on the heap. */
+            BUFFERED,
+            /** The data was moved directly between two file channels. */
+            CHANNEL,
+        }
+
+        private final long bytes;
+        private final Mode mode;
+
+        public Transfer(long bytes, Mode mode) {
+            this.bytes = bytes;
+            this.mode = mode;
+        }
+
+        /**
+         * @return The number of bytes which were transferred.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return The way in which the data was transferred.
+         */
+        public Mode getMode() {
+            return mode;
+        }
+    }
+
     /**
      * Transfer an InputStream to an OutputStream.
      *
+     * When both streams are backed by files, the data will be moved between
+     * the file channels without copying it through the heap. Otherwise,
+     * the data will be copied through a buffer from the shared BufferPool.
+     *
      * Neither stream will be automatically closed.
+     *
+     * @return A description of the transfer.
      */
-    public static void stream(InputStream in, OutputStream out)
-        throws IOException {
-        byte[] buffer = new byte[4096];
+    public static Transfer stream(InputStream in, OutputStream out)
+    throws IOException {
+        if (in instanceof FileInputStream && out instanceof FileOutputStream) {
+            return streamChannel(
+                Coerce.notnull(((FileInputStream) in).getChannel()),
+                Coerce.notnull(((FileOutputStream) out).getChannel()));
+        }
 
-        int len;
-        while ((len = in.read(buffer)) != -1) {
-            out.write(buffer, 0, len);
+        return stream(in, out, BufferPool.shared());
+    }
+
+    /**
+     * Transfer an InputStream to an OutputStream through a buffer taken
+     * from the given pool.
+     *
+     * Neither stream will be automatically closed.
+     *
+     * @return A description of the transfer.
+     */
+    public static Transfer stream(
+    InputStream in, OutputStream out, BufferPool pool) throws IOException {
+        byte[] buffer = pool.acquire();
+        long total = 0;
+
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                out.write(buffer, 0, len);
+                total += len;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        return new Transfer(total, Transfer.Mode.BUFFERED);
+    }
+
+    private static Transfer streamChannel(FileChannel in, FileChannel out)
+    throws IOException {
+        long start = in.position();
+        long position = start;
+        long size = in.size();
+
+        // transferTo may move fewer bytes than requested, so keep going
+        // until we reach the end of the input.
+        while (position < size) {
+            long moved = in.transferTo(position, size - position, out);
+
+            if (moved <= 0) {
+                break;
+            }
+
+            position += moved;
+        }
+
+        // transferTo doesn't move the position of the input channel,
+        // so move it ourselves, as reading the stream would have done.
+        in.position(position);
+
+        return new Transfer(position - start, Transfer.Mode.CHANNEL);
+    }
+
+    /**
+     * Copy one file to another, replacing the contents of the destination.
+     *
+     * @param source The file to copy from.
+     * @param destination The file to copy to.
+     * @return A description of the transfer.
+     */
+    public static Transfer copy(File source, File destination)
+    throws IOException {
+        FileInputStream in = new FileInputStream(source);
+
+        try {
+            FileOutputStream out = new FileOutputStream(destination);
+
+            try {
+                return stream(in, out);
+            } finally {
+                IO.close(out);
+            }
+        } finally {
+            IO.close(in);
         }
     }
 
     /**
      * The InputStream will be automatically closed.
      *
+     * The data will be decoded with the default charset.
+     *
      * @return A string containing all of the data from an InputStream.
      */
     @SuppressWarnings("null")
-	public static @NonNull String
+    public static @NonNull String
     streamToString(@Nullable InputStream is) throws IOException {
+        return streamToString(is, Charset.defaultCharset(), -1);
+    }
+
+    /**
+     * The InputStream will be automatically closed.
+     *
+     * @param is An InputStream. null will be tolerated.
+     * @param charset The charset to decode the data with.
+     * @return A string containing all of the data from an InputStream.
+     */
+    public static @NonNull String
+    streamToString(@Nullable InputStream is, Charset charset)
+    throws IOException {
+        return streamToString(is, charset, -1);
+    }
+
+    /**
+     * Decode an entire InputStream into a string.
+     *
+     * The data is decoded in bulk, so line endings are kept exactly as
+     * they were sent. A length hint, such as a Content-Length header,
+     * can be given to size the buffer for the result up front.
+     *
+     * The InputStream will be automatically closed.
+     *
+     * @param is An InputStream. null will be tolerated.
+     * @param charset The charset to decode the data with.
+     * @param lengthHint The expected length of the data in bytes,
+     *     or a negative number if the length is not known.
+     * @return A string containing all of the data from an InputStream.
+     */
+    @SuppressWarnings("null")
+    public static @NonNull String streamToString(
+    @Nullable InputStream is, Charset charset, long lengthHint)
+    throws IOException {
         if (is == null) {
             return "";
         }
 
-        BufferedReader reader = new BufferedReader(new InputStreamReader(is));
-        StringBuilder sb = new StringBuilder();
+        return readerToString(new InputStreamReader(is, charset),
+            initialCapacity(lengthHint));
+    }
 
-        String line = null;
+    /**
+     * The Reader will be automatically closed.
+     *
+     * @param reader A Reader. null will be tolerated.
+     * @return A string containing all of the characters from a Reader.
+     */
+    public static @NonNull String readerToString(@Nullable Reader reader)
+    throws IOException {
+        return readerToString(reader, CHAR_BUFFER_SIZE);
+    }
+
+    /**
+     * Read an entire Reader into a string, with a length hint for sizing
+     * the buffer for the result up front.
+     *
+     * The Reader will be automatically closed.
+     *
+     * @param reader A Reader. null will be tolerated.
+     * @param lengthHint The expected length of the data in bytes before it
+     *     was decoded, or a negative number if the length is not known.
+     * @return A string containing all of the characters from a Reader.
+     */
+    public static @NonNull String readerToString(@Nullable Reader reader,
+    long lengthHint) throws IOException {
+        return readerToString(reader, initialCapacity(lengthHint));
+    }
+
+    @SuppressWarnings("null")
+    private static @NonNull String readerToString(
+    @Nullable Reader reader, int capacity) throws IOException {
+        if (reader == null) {
+            return "";
+        }
+
+        StringBuilder sb = new StringBuilder(capacity);
+        char[] buffer = new char[CHAR_BUFFER_SIZE];
 
         try {
-            while ((line = reader.readLine()) != null) {
-                sb.append(line + "\n");
+            int len;
+            while ((len = reader.read(buffer)) != -1) {
+                sb.append(buffer, 0, len);
             }
         } finally {
-            IO.close(is);
+            IO.close(reader);
         }
 
         return sb.toString();
     }
 
+    /**
+     * Read and discard the rest of an InputStream.
+     *
+     * The InputStream will not be automatically closed.
+     *
+     * @return The number of bytes which were discarded.
+     */
+    public static long drain(InputStream in) throws IOException {
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquire();
+        long total = 0;
+
+        try {
+            int len;
+            while ((len = in.read(buffer)) != -1) {
+                total += len;
+            }
+        } finally {
+            pool.release(buffer);
+        }
+
+        return total;
+    }
+
+    private static int initialCapacity(long lengthHint) {
+        if (lengthHint <= 0) {
+            return CHAR_BUFFER_SIZE;
+        }
+
+        // Every charset we care about needs at least one byte per char,
+        // so the byte length is an upper bound on the length of the string.
+        // Bogus headers shouldn't make us allocate huge amounts of memory.
+        return (int) Math.min(lengthHint, MAX_PRESIZE);
+    }
+
+    /**
+     * Look up a charset by name, such as the charset parameter from a
+     * Content-Type header.
+     *
+     * @param name A charset name. null will be tolerated.
+     * @return The named charset, or UTF-8 if the name is missing or
+     *     the charset is not supported.
+     */
+    public static Charset charset(@Nullable String name) {
+        if (name != null) {
+            try {
+                return Coerce.notnull(Charset.forName(name));
+            } catch (IllegalArgumentException e) { }
+        }
+
+        return UTF_8;
+    }
+
+    /**
+     * Read an entire file into a read-only ByteBuffer.
+     *
+     * Files of at least DEFAULT_MAP_THRESHOLD bytes will be memory mapped,
+     * and smaller files will be read onto the heap.
+     *
+     * @param file The file to read.
+     * @return A read-only buffer with the contents of the file.
+     */
+    public static ByteBuffer readFile(File file) throws IOException {
+        return readFile(file, DEFAULT_MAP_THRESHOLD);
+    }
+
+    /**
+     * Read an entire file into a read-only ByteBuffer.
+     *
+     * Mapping a file saves copying the data onto the heap, but setting up
+     * a mapping costs more than a plain read for small files.
+     *
+     * @param file The file to read.
+     * @param mapThreshold The minimum size in bytes for which the file will
+     *     be memory mapped instead of being read onto the heap.
+     * @return A read-only buffer with the contents of the file.
+     */
+    @SuppressWarnings("null")
+    public static ByteBuffer readFile(File file, long mapThreshold)
+    throws IOException {
+        FileInputStream in = new FileInputStream(file);
+
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to read: " + file);
+            }
+
+            if (size >= mapThreshold) {
+                // The mapping stays valid after the channel is closed.
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) {
+                    break;
+                }
+            }
+
+            buffer.flip();
+
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            IO.close(in);
+        }
+    }
+
+    /**
+     * A CharSequence view of some bytes, which are only decoded the first
+     * time any characters are needed.
+     */
+    private static final class DecodingCharSequence implements CharSequence {
+        private final ByteBuffer bytes;
+        private final Charset charset;
+        private @Nullable CharBuffer chars;
+
+        DecodingCharSequence(ByteBuffer bytes, Charset charset) {
+            this.bytes = bytes;
+            this.charset = charset;
+        }
+
+        // This isn't called chars(), which CharSequence has on newer APIs.
+        @SuppressWarnings("null")
+        private synchronized CharBuffer decoded() {
+            CharBuffer decoded = chars;
+
+            if (decoded == null) {
+                // Decode from a duplicate so the original position is kept.
+                decoded = charset.decode(bytes.duplicate());
+                chars = decoded;
+            }
+
+            return decoded;
+        }
+
+        @Override
+        public int length() {
+            return decoded().length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            return decoded().charAt(index);
+        }
+
+        @SuppressWarnings("null")
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return decoded().subSequence(start, end);
+        }
+
+        @SuppressWarnings("null")
+        @Override
+        public String toString() {
+            return decoded().toString();
+        }
+    }
+
+    /**
+     * Read an entire file as a sequence of characters.
+     *
+     * The file is read with readFile(file), and the characters will only be
+     * decoded when they are first needed.
+     *
+     * @param file The file to read.
+     * @param charset The charset to decode the file with.
+     * @return A CharSequence view of the file.
+     */
+    public static CharSequence readFileChars(File file, Charset charset)
+    throws IOException {
+        return new DecodingCharSequence(readFile(file), charset);
+    }
+
+    /**
+     * Convert bytes to a lowercase hexadecimal string, such as for
+     * printing a hash.
+     */
+    public static String hex(byte[] data) {
+        StringBuilder sb = new StringBuilder(data.length * 2);
+
+        for (byte b : data) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+
+        return Coerce.notnull(sb.toString());
+    }
+
     /**
      * Try to close an object, ignoring exceptions.
      *
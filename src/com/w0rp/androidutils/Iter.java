@@ -127,12 +127,13 @@ public abstract class Iter {
     private static final Iterable<?> NULL_ITERABLE =
         new NullIterable<Object>();
 
-    private static final IteratorIterable<?> NULL_ITERATOR_ITERABLE =
-        new IteratorIterable<Object>(Object.class, null);
-
+    // This must come before NULL_ITERATOR_ITERABLE, which uses it.
     private static final CastIterator<?> NULL_CAST_ITERATOR =
         new CastIterator<Object>(Object.class, null);
 
+    private static final IteratorIterable<?> NULL_ITERATOR_ITERABLE =
+        new IteratorIterable<Object>(Object.class, null);
+
     /**
      * @return A single instance of an empty iterator.
      */
@@ -1,7 +1,25 @@
 package com.w0rp.androidutils;
 
+import java.io.InputStream;
+import java.io.Reader;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.json.JSONArray;
@@ -102,6 +120,26 @@ public abstract class JSON {
         return Iter.cast(String.class, obj.keys());
     }
 
+    /**
+     * Create a stream for reading JSON one value at a time, which can
+     * be iterated through like JSON.iter() without parsing the whole
+     * document first.
+     *
+     * @param reader A reader for the JSON text. null will be tolerated.
+     * @return A stream for the JSON, which should be closed.
+     */
+    public static JSONStream stream(@Nullable Reader reader) {
+        return new JSONStream(reader);
+    }
+
+    /**
+     * @param in A stream of JSON text in UTF-8. null will be tolerated.
+     * @return A stream for the JSON, which should be closed.
+     */
+    public static JSONStream stream(@Nullable InputStream in) {
+        return new JSONStream(in);
+    }
+
     /**
      * Call obj.optString with checked null analysis.
      *
@@ -129,4 +167,570 @@ public abstract class JSON {
     throws JSONException {
         return obj.getString(key);
     }
+
+    /**
+     * Set the key a field is bound from with a Binder, when the key is not
+     * the same as the name of the field.
+     */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Key {
+        String value();
+    }
+
+    // The kinds of values a Binder can set.
+    private static final int KIND_STRING = 0;
+    private static final int KIND_INT = 1;
+    private static final int KIND_LONG = 2;
+    private static final int KIND_DOUBLE = 3;
+    private static final int KIND_BOOLEAN = 4;
+    private static final int KIND_FLOAT = 5;
+    private static final int KIND_SHORT = 6;
+    private static final int KIND_BYTE = 7;
+    private static final int KIND_CHAR = 8;
+    private static final int KIND_OBJECT = 9;
+    private static final int KIND_LIST = 10;
+    private static final int KIND_JSON = 11;
+
+    private static final ConcurrentHashMap<Class<?>, Binder<?>> binderMap =
+        new ConcurrentHashMap<Class<?>, Binder<?>>();
+
+    /**
+     * The plan for setting one field from a JSONObject.
+     */
+    private static final class Binding {
+        private final Field field;
+        private final String key;
+        private final int kind;
+        // true for boxed numbers, booleans, and chars.
+        private final boolean boxed;
+        // The kind of the elements for KIND_LIST.
+        private final int elementKind;
+        // The class for KIND_JSON, or JSON elements of KIND_LIST.
+        private final @Nullable Class<?> valueClass;
+        // The Binder for KIND_OBJECT, or object elements of KIND_LIST.
+        private final @Nullable Binder<?> binder;
+
+        Binding(Field field, String key, int kind, boolean boxed,
+        int elementKind, @Nullable Class<?> valueClass,
+        @Nullable Binder<?> binder) {
+            this.field = field;
+            this.key = key;
+            this.kind = kind;
+            this.boxed = boxed;
+            this.elementKind = elementKind;
+            this.valueClass = valueClass;
+            this.binder = binder;
+        }
+    }
+
+    /**
+     * This class sets the fields of objects of a class from JSONObjects.
+     *
+     * The fields to set are found once when the Binder is created, along
+     * with Binders for nested classes, so binding each object doesn't need
+     * to look anything up. Every field which is not static, final, or
+     * transient is set, from the key with the same name as the field, or
+     * the key given with JSON.Key.
+     *
+     * Fields can be Strings, primitives or their boxed types, JSONObjects,
+     * JSONArrays, Lists of any of those, other classes which can be bound,
+     * or Lists of those. Numbers and booleans are read with the opt methods
+     * of JSONObject, so a string like "12" sets an int or an Integer field
+     * to 12. char fields are set to the first character of the value.
+     * Fields of any other type, such as enums, Object, Date, Maps, Sets,
+     * or Lists declared as ArrayList, make the Binder throw an
+     * IllegalArgumentException when it is created.
+     *
+     * Missing or null values follow the defaults from Coerce.def(), so
+     * String fields are set to "", numbers to 0, booleans to false, and
+     * List fields to empty lists. Boxed numbers, nested objects, and
+     * JSONObject or JSONArray fields are set to null.
+     *
+     * Lists of nested objects are bound through JSON.objIter(), so values
+     * in a list which are not objects are skipped. Null values are skipped
+     * in every List.
+     *
+     * Binders are safe to use from any thread.
+     *
+     * @param <T> The class to bind.
+     */
+    public static final class Binder<T> {
+        private final Constructor<T> constructor;
+        private final Binding[] bindingList;
+
+        /**
+         * @param cls The class to bind.
+         * @param building Binders created for this Binder so far, so
+         *     classes which contain themselves can be bound.
+         */
+        private Binder(Class<T> cls, Map<Class<?>, Binder<?>> building) {
+            String problem = unbindable(cls);
+
+            if (problem != null) {
+                throw new IllegalArgumentException(cls + " " + problem);
+            }
+
+            try {
+                constructor = Coerce.notnull(cls.getDeclaredConstructor());
+                constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException(
+                    cls + " has no constructor without arguments");
+            }
+
+            building.put(cls, this);
+
+            List<Binding> list = new ArrayList<Binding>();
+
+            for (Class<?> c = cls; c != null && c != Object.class;
+            c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+
+                    if (Modifier.isStatic(modifiers)
+                    || Modifier.isFinal(modifiers)
+                    || Modifier.isTransient(modifiers)
+                    || field.isSynthetic()) {
+                        continue;
+                    }
+
+                    field.setAccessible(true);
+                    list.add(binding(Coerce.notnull(field), building));
+                }
+            }
+
+            bindingList = list.toArray(new Binding[list.size()]);
+        }
+
+        /**
+         * @return The kind for a String, primitive, or boxed class,
+         *     or -1 for any other class.
+         */
+        private static int valueKind(Class<?> type) {
+            if (type == String.class) {
+                return KIND_STRING;
+            } else if (type == int.class || type == Integer.class) {
+                return KIND_INT;
+            } else if (type == long.class || type == Long.class) {
+                return KIND_LONG;
+            } else if (type == double.class || type == Double.class) {
+                return KIND_DOUBLE;
+            } else if (type == boolean.class || type == Boolean.class) {
+                return KIND_BOOLEAN;
+            } else if (type == float.class || type == Float.class) {
+                return KIND_FLOAT;
+            } else if (type == short.class || type == Short.class) {
+                return KIND_SHORT;
+            } else if (type == byte.class || type == Byte.class) {
+                return KIND_BYTE;
+            } else if (type == char.class || type == Character.class) {
+                return KIND_CHAR;
+            }
+
+            return -1;
+        }
+
+        /**
+         * @return Why a class can't be bound as an object, or null if it
+         *     can be.
+         */
+        private static @Nullable String unbindable(Class<?> type) {
+            String name = type.getName();
+
+            if (Collection.class.isAssignableFrom(type)) {
+                return "is a collection. Use List for JSON arrays.";
+            } else if (Map.class.isAssignableFrom(type)) {
+                return "is a Map. Use JSONObject for JSON objects.";
+            } else if (type.isEnum()) {
+                return "is an enum. Bind a String and convert it.";
+            } else if (type.isPrimitive() || type.isArray()
+            || type.isInterface()
+            || Modifier.isAbstract(type.getModifiers())) {
+                return "can't be created to be bound.";
+            } else if (type == Object.class || name.startsWith("java.")
+            || name.startsWith("javax.") || name.startsWith("android.")
+            || name.startsWith("org.json.")) {
+                return "has no fields to bind. Bind a value and convert it.";
+            }
+
+            return null;
+        }
+
+        /**
+         * Get the Binder for a class, using a Binder which has already
+         * been created if there is one.
+         */
+        private static <U> Binder<?> lookup(Class<U> cls,
+        Map<Class<?>, Binder<?>> building) {
+            Binder<?> binder = binderMap.get(cls);
+
+            if (binder == null) {
+                binder = building.get(cls);
+            }
+
+            if (binder == null) {
+                binder = new Binder<U>(cls, building);
+            }
+
+            return binder;
+        }
+
+        private static Binding binding(Field field,
+        Map<Class<?>, Binder<?>> building) {
+            Key key = field.getAnnotation(Key.class);
+            String name = Coerce.notnull(
+                key != null ? key.value() : field.getName());
+            Class<?> type = Coerce.notnull(field.getType());
+            int kind = valueKind(type);
+
+            if (kind != -1) {
+                return new Binding(field, name, kind,
+                    !type.isPrimitive() && kind != KIND_STRING, -1, null,
+                    null);
+            } else if (type == JSONObject.class || type == JSONArray.class) {
+                return new Binding(field, name, KIND_JSON, false, -1, type,
+                    null);
+            } else if (type == List.class) {
+                Type generic = field.getGenericType();
+
+                if (!(generic instanceof ParameterizedType)) {
+                    throw new IllegalArgumentException(
+                        "List fields need an element class: " + field);
+                }
+
+                Type element = ((ParameterizedType) generic)
+                    .getActualTypeArguments()[0];
+
+                if (!(element instanceof Class)) {
+                    throw new IllegalArgumentException(
+                        "List fields need an element class: " + field);
+                }
+
+                Class<?> cls = (Class<?>) element;
+                int elementKind = valueKind(cls);
+
+                if (elementKind != -1) {
+                    return new Binding(field, name, KIND_LIST, false,
+                        elementKind, null, null);
+                } else if (cls == JSONObject.class
+                || cls == JSONArray.class) {
+                    return new Binding(field, name, KIND_LIST, false,
+                        KIND_JSON, cls, null);
+                }
+
+                return new Binding(field, name, KIND_LIST, false,
+                    KIND_OBJECT, null, nested(field, cls, building));
+            }
+
+            return new Binding(field, name, KIND_OBJECT, false, -1, null,
+                nested(field, type, building));
+        }
+
+        /**
+         * Get the Binder for the class of a field, or the elements of a
+         * List field, naming the field if the class can't be bound.
+         */
+        private static Binder<?> nested(Field field, Class<?> cls,
+        Map<Class<?>, Binder<?>> building) {
+            try {
+                return lookup(cls, building);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(
+                    "Can't bind " + field + ": " + e.getMessage(), e);
+            }
+        }
+
+        private static char firstChar(Object value) {
+            String string = value.toString();
+
+            return string.length() > 0 ? string.charAt(0) : '\0';
+        }
+
+        /**
+         * Read a value for a boxed field.
+         *
+         * @param value The value for the key, which is not null.
+         */
+        private static Object boxed(int kind, JSONObject obj, String key,
+        Object value) {
+            switch (kind) {
+            case KIND_INT:
+                return obj.optInt(key);
+            case KIND_LONG:
+                return obj.optLong(key);
+            case KIND_DOUBLE:
+                return obj.optDouble(key);
+            case KIND_BOOLEAN:
+                return obj.optBoolean(key);
+            case KIND_FLOAT:
+                return (float) obj.optDouble(key);
+            case KIND_SHORT:
+                return (short) obj.optInt(key);
+            case KIND_BYTE:
+                return (byte) obj.optInt(key);
+            case KIND_CHAR:
+                return firstChar(value);
+            default:
+                throw new IllegalStateException();
+            }
+        }
+
+        /**
+         * Read a value for a List, the same way as boxed(), from an array.
+         *
+         * @param value The value at the index, which is not null.
+         */
+        private static Object element(int kind, JSONArray arr, int index,
+        Object value) {
+            switch (kind) {
+            case KIND_STRING:
+                return value.toString();
+            case KIND_INT:
+                return arr.optInt(index);
+            case KIND_LONG:
+                return arr.optLong(index);
+            case KIND_DOUBLE:
+                return arr.optDouble(index);
+            case KIND_BOOLEAN:
+                return arr.optBoolean(index);
+            case KIND_FLOAT:
+                return (float) arr.optDouble(index);
+            case KIND_SHORT:
+                return (short) arr.optInt(index);
+            case KIND_BYTE:
+                return (byte) arr.optInt(index);
+            case KIND_CHAR:
+                return firstChar(value);
+            default:
+                throw new IllegalStateException();
+            }
+        }
+
+        private static List<Object> list(Binding binding, JSONObject obj) {
+            List<Object> list = new ArrayList<Object>();
+
+            if (binding.elementKind == KIND_OBJECT) {
+                Binder<?> binder = Coerce.notnull(binding.binder);
+
+                for (JSONObject item : JSON.objIter(obj, binding.key)) {
+                    list.add(binder.bind(item));
+                }
+
+                return list;
+            }
+
+            JSONArray arr = obj.optJSONArray(binding.key);
+
+            if (arr == null) {
+                return list;
+            }
+
+            for (int i = 0; i < arr.length(); ++i) {
+                Object item = arr.opt(i);
+
+                if (item == null || item == JSONObject.NULL) {
+                    continue;
+                }
+
+                if (binding.elementKind == KIND_JSON) {
+                    if (Coerce.notnull(binding.valueClass).isInstance(item)) {
+                        list.add(item);
+                    }
+                } else {
+                    list.add(element(binding.elementKind, arr, i, item));
+                }
+            }
+
+            return list;
+        }
+
+        private static void set(Object target, Binding binding,
+        JSONObject obj) throws IllegalAccessException {
+            Field field = binding.field;
+            Object value = obj.opt(binding.key);
+
+            if (value == JSONObject.NULL) {
+                value = null;
+            }
+
+            if (binding.boxed) {
+                field.set(target, value != null
+                    ? boxed(binding.kind, obj, binding.key, value)
+                    : null);
+                return;
+            }
+
+            switch (binding.kind) {
+            case KIND_STRING:
+                field.set(target,
+                    Coerce.def(value != null ? value.toString() : null));
+                break;
+            case KIND_INT:
+                field.setInt(target, obj.optInt(binding.key));
+                break;
+            case KIND_LONG:
+                field.setLong(target, obj.optLong(binding.key));
+                break;
+            case KIND_DOUBLE:
+                field.setDouble(target, value != null
+                    ? obj.optDouble(binding.key)
+                    : 0);
+                break;
+            case KIND_BOOLEAN:
+                field.setBoolean(target, obj.optBoolean(binding.key));
+                break;
+            case KIND_FLOAT:
+                field.setFloat(target, value != null
+                    ? (float) obj.optDouble(binding.key)
+                    : 0);
+                break;
+            case KIND_SHORT:
+                field.setShort(target, (short) obj.optInt(binding.key));
+                break;
+            case KIND_BYTE:
+                field.setByte(target, (byte) obj.optInt(binding.key));
+                break;
+            case KIND_CHAR:
+                field.setChar(target, value != null ? firstChar(value) : 0);
+                break;
+            case KIND_JSON:
+                field.set(target, Coerce.cast(
+                    Coerce.notnull(binding.valueClass), value));
+                break;
+            case KIND_OBJECT:
+                field.set(target, value instanceof JSONObject
+                    ? Coerce.notnull(binding.binder).bind((JSONObject) value)
+                    : null);
+                break;
+            case KIND_LIST:
+                field.set(target, list(binding, obj));
+                break;
+            default:
+                throw new IllegalStateException();
+            }
+        }
+
+        /**
+         * Create an object and set its fields from a JSONObject.
+         *
+         * @param obj The JSONObject to read values from.
+         * @return The new object.
+         * @throws IllegalStateException If the object can't be created.
+         */
+        public T bind(JSONObject obj) {
+            try {
+                T target = Coerce.notnull(constructor.newInstance());
+
+                for (Binding binding : bindingList) {
+                    set(target, binding, obj);
+                }
+
+                return target;
+            } catch (InstantiationException e) {
+                throw new IllegalStateException(e);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            } catch (InvocationTargetException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        /**
+         * Bind every object from an Iterable, such as JSON.objIter().
+         *
+         * @param objs The objects to read values from.
+         * @return A list of the new objects.
+         */
+        public List<T> bindAll(Iterable<JSONObject> objs) {
+            List<T> list = new ArrayList<T>();
+
+            for (JSONObject obj : objs) {
+                list.add(bind(obj));
+            }
+
+            return list;
+        }
+
+        /**
+         * Bind objects as they are iterated through, such as the objects
+         * read from a JSONStream, so only one is held at a time.
+         *
+         * @param objs The objects to read values from.
+         * @return An Iterable through the new objects.
+         */
+        public Iterable<T> iter(final Iterable<JSONObject> objs) {
+            return new Iterable<T>() {
+                @Override
+                public Iterator<T> iterator() {
+                    final Iterator<JSONObject> iter = objs.iterator();
+
+                    return new Iterator<T>() {
+                        @Override
+                        public boolean hasNext() {
+                            return iter.hasNext();
+                        }
+
+                        @Override
+                        public T next() {
+                            return bind(Coerce.notnull(iter.next()));
+                        }
+
+                        @Override
+                        public void remove() {
+                            iter.remove();
+                        }
+                    };
+                }
+            };
+        }
+    }
+
+    /**
+     * Get the Binder for a class, creating it the first time.
+     *
+     * @param cls The class to bind. The class must have a constructor
+     *     without arguments.
+     * @return The Binder for the class.
+     * @throws IllegalArgumentException If the class can't be bound.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> Binder<T> binder(Class<T> cls) {
+        Binder<T> binder = (Binder<T>) binderMap.get(cls);
+
+        if (binder == null) {
+            Map<Class<?>, Binder<?>> building =
+                new HashMap<Class<?>, Binder<?>>();
+
+            // Two threads may create a Binder at once, which is harmless.
+            binder = new Binder<T>(cls, building);
+
+            // Keep the Binders for nested classes too, now they are done.
+            for (Map.Entry<Class<?>, Binder<?>> entry : building.entrySet()) {
+                binderMap.putIfAbsent(entry.getKey(), entry.getValue());
+            }
+        }
+
+        return binder;
+    }
+
+    /**
+     * Create an object of a class, and set its fields from a JSONObject.
+     *
+     * @see Binder
+     */
+    public static <T> T bind(JSONObject obj, Class<T> cls) {
+        return binder(cls).bind(obj);
+    }
+
+    /**
+     * Bind every object from an Iterable, such as JSON.objIter(), or the
+     * objIter() method of a JSONStream.
+     *
+     * @see Binder
+     */
+    public static <T> List<T> bindAll(Iterable<JSONObject> objs,
+    Class<T> cls) {
+        return binder(cls).bindAll(objs);
+    }
 }
@@ -0,0 +1,413 @@
+package com.w0rp.androidutils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.eclipse.jdt.annotation.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.w0rp.androidutils.Iter.CastIterable;
+import com.w0rp.androidutils.Iter.IteratorIterable;
+
+/**
+ * This class reads JSON from a stream one value at a time, so large
+ * documents can be read without holding the whole document in memory.
+ *
+ * The iter(), objIter() and keys() methods work like the methods of the
+ * same names in JSON, except that array elements are only parsed as they
+ * are iterated through. Each element is built as an org.json value, so
+ * only one element is held in memory at a time.
+ *
+ * Arrays and objects are found by a path of keys from the top of the
+ * document. If a key is missing or the value is not of the right type,
+ * an empty Iterable is returned, in the same way null is tolerated by
+ * JSON.iter().
+ *
+ * A stream can only be read once, from start to end, so only the first
+ * call to iter(), objIter() or keys() on a stream will find anything.
+ * Later calls will return empty Iterables.
+ *
+ * Errors while reading end iteration early, and can be checked for with
+ * getError().
+ */
+public class JSONStream implements Closeable {
+    private final @Nullable JsonReader reader;
+    private @Nullable IOException error = null;
+    // true when the value for a key from keys() hasn't been read.
+    private boolean valuePending = false;
+    private boolean started = false;
+
+    /**
+     * @param reader A reader for the JSON text. null will be tolerated,
+     *     and will be read as an empty document.
+     */
+    public JSONStream(@Nullable Reader reader) {
+        this.reader = reader != null ? new JsonReader(reader) : null;
+    }
+
+    /**
+     * @param in A stream of JSON text in UTF-8. null will be tolerated,
+     *     and will be read as an empty document.
+     */
+    public JSONStream(@Nullable InputStream in) {
+        this(in != null ? new InputStreamReader(in, IO.UTF_8) : null);
+    }
+
+    /**
+     * @return The error which ended reading early, or null.
+     */
+    public @Nullable IOException getError() {
+        return error;
+    }
+
+    private void fail(Exception e) {
+        if (error == null) {
+            error = e instanceof IOException
+                ? (IOException) e
+                : new IOException("Invalid JSON: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Skip the value for the last key from keys(), if it wasn't read.
+     */
+    private void skipPending(JsonReader in) throws IOException {
+        if (valuePending) {
+            valuePending = false;
+            in.skipValue();
+        }
+    }
+
+    /**
+     * Move into the value at a path, so the next token is the start of it.
+     *
+     * @return The reader, or null if the path can't be found.
+     */
+    private @Nullable JsonReader find(String[] path) {
+        JsonReader in = reader;
+
+        if (in == null || started) {
+            // The stream can only be read once.
+            return null;
+        }
+
+        started = true;
+
+        try {
+            for (String key : path) {
+                if (in.peek() != JsonToken.BEGIN_OBJECT) {
+                    return null;
+                }
+
+                in.beginObject();
+
+                boolean found = false;
+
+                while (!found && in.hasNext()) {
+                    if (key.equals(in.nextName())) {
+                        found = true;
+                    } else {
+                        in.skipValue();
+                    }
+                }
+
+                if (!found) {
+                    return null;
+                }
+            }
+
+            return in;
+        } catch (Exception e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the next value in full.
+     *
+     * @return The value as an org.json value, with JSONObject.NULL for
+     *     null, like the values in a JSONArray.
+     */
+    @SuppressWarnings("null")
+    private static Object readValue(JsonReader in)
+    throws IOException, JSONException {
+        switch (in.peek()) {
+        case BEGIN_ARRAY:
+            JSONArray arr = new JSONArray();
+
+            in.beginArray();
+
+            while (in.hasNext()) {
+                arr.put(readValue(in));
+            }
+
+            in.endArray();
+
+            return arr;
+        case BEGIN_OBJECT:
+            JSONObject obj = new JSONObject();
+
+            in.beginObject();
+
+            while (in.hasNext()) {
+                obj.put(in.nextName(), readValue(in));
+            }
+
+            in.endObject();
+
+            return obj;
+        case STRING:
+            return in.nextString();
+        case NUMBER:
+            return number(in.nextString());
+        case BOOLEAN:
+            return in.nextBoolean();
+        case NULL:
+            in.nextNull();
+
+            return JSONObject.NULL;
+        default:
+            throw new IOException("Unexpected token: " + in.peek());
+        }
+    }
+
+    /**
+     * Convert a number to an Integer, a Long, or a Double, as org.json
+     * would.
+     */
+    private static Object number(String text) {
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0
+        && text.indexOf('E') < 0) {
+            try {
+                long value = Long.parseLong(text);
+
+                if (value == (int) value) {
+                    return (int) value;
+                }
+
+                return value;
+            } catch (NumberFormatException e) {
+                // The number is too large for a long.
+            }
+        }
+
+        return Double.valueOf(text);
+    }
+
+    /**
+     * An Iterator reading the elements of an array from the stream.
+     */
+    private final class ArrayIterator implements Iterator<Object> {
+        private final @Nullable JsonReader in;
+        private boolean done;
+
+        ArrayIterator(@Nullable JsonReader in) {
+            this.in = in;
+            this.done = in == null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            JsonReader reader = in;
+
+            if (done || reader == null) {
+                return false;
+            }
+
+            try {
+                if (reader.hasNext()) {
+                    return true;
+                }
+
+                reader.endArray();
+            } catch (Exception e) {
+                fail(e);
+            }
+
+            done = true;
+
+            return false;
+        }
+
+        @Override
+        public @Nullable Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                return readValue(Coerce.notnull(in));
+            } catch (Exception e) {
+                fail(e);
+                done = true;
+
+                // The element is skipped, as a CastIterator will skip null.
+                return null;
+            }
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+
+    /**
+     * An Iterator reading the keys of an object from the stream.
+     */
+    private final class KeyIterator implements Iterator<String> {
+        private final @Nullable JsonReader in;
+        private boolean done;
+
+        KeyIterator(@Nullable JsonReader in) {
+            this.in = in;
+            this.done = in == null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            JsonReader reader = in;
+
+            if (done || reader == null) {
+                return false;
+            }
+
+            try {
+                skipPending(reader);
+
+                if (reader.hasNext()) {
+                    return true;
+                }
+
+                reader.endObject();
+            } catch (Exception e) {
+                fail(e);
+            }
+
+            done = true;
+
+            return false;
+        }
+
+        @Override
+        public @Nullable String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            try {
+                String key = Coerce.notnull(in).nextName();
+                valuePending = true;
+
+                return key;
+            } catch (Exception e) {
+                fail(e);
+                done = true;
+
+                return null;
+            }
+        }
+
+        @Override
+        public void remove() {
+        }
+    }
+
+    /**
+     * @param path The keys leading to an array, or no keys for an array
+     *     at the top of the document.
+     * @return An Iterable through the values of the array, parsed as they
+     *     are reached. A missing array will result in an empty Iterable.
+     */
+    public IteratorIterable<Object> iter(String... path) {
+        JsonReader in = find(path);
+
+        try {
+            if (in == null || in.peek() != JsonToken.BEGIN_ARRAY) {
+                return Iter.emptyIteratorIterable();
+            }
+
+            in.beginArray();
+        } catch (Exception e) {
+            fail(e);
+            return Iter.emptyIteratorIterable();
+        }
+
+        return Iter.cast(Object.class, new ArrayIterator(in));
+    }
+
+    /**
+     * @param path The keys leading to an array, or no keys for an array
+     *     at the top of the document.
+     * @return An Iterable through the JSONObject values of the array.
+     */
+    public CastIterable<JSONObject> objIter(String... path) {
+        return Iter.cast(JSONObject.class, iter(path));
+    }
+
+    /**
+     * Produce an Iterable through the keys of an object. The value for the
+     * current key can be read with value(), and is skipped otherwise.
+     *
+     * @param path The keys leading to an object, or no keys for an object
+     *     at the top of the document.
+     * @return An Iterable through the keys of the object.
+     */
+    public IteratorIterable<String> keys(String... path) {
+        JsonReader in = find(path);
+
+        try {
+            if (in == null || in.peek() != JsonToken.BEGIN_OBJECT) {
+                return Iter.emptyIteratorIterable();
+            }
+
+            in.beginObject();
+        } catch (Exception e) {
+            fail(e);
+            return Iter.emptyIteratorIterable();
+        }
+
+        return Iter.cast(String.class, new KeyIterator(in));
+    }
+
+    /**
+     * Read the value for the last key from keys().
+     *
+     * @return The value as an org.json value, or null if there is no
+     *     value to read.
+     */
+    public @Nullable Object value() {
+        JsonReader in = reader;
+
+        if (in == null || !valuePending) {
+            return null;
+        }
+
+        valuePending = false;
+
+        try {
+            return readValue(in);
+        } catch (Exception e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    /**
+     * Close the underlying reader.
+     */
+    @Override
+    public void close() {
+        IO.close(reader);
+    }
+}
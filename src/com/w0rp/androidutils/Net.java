@@ -1,39 +1,72 @@
 package com.w0rp.androidutils;
 
+import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.ParseException;
+import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
 import org.eclipse.jdt.annotation.Nullable;
 
 import android.util.Base64;
 
 public class Net {
-    public static class Response {
+    public static class Response implements Closeable {
         public static final int GENERIC_FAILURE = 600;
 
-        private final InputStream stream;
+        private final IO.CountingInputStream stream;
+        private final @Nullable IO.CountingInputStream wireStream;
         private int responseCode = GENERIC_FAILURE;
+        private final Charset charset;
+        private final long contentLength;
+        private @Nullable HttpUriRequest request = null;
+        private @Nullable IOException error = null;
 
         public Response(@Nullable InputStream stream) {
             this(stream, GENERIC_FAILURE);
         }
 
         public Response(@Nullable InputStream stream, int responseCode) {
-            if (stream == null) {
-                this.stream = IO.emptyInputStream();
-            } else {
-                this.stream = stream;
-            }
+            this(stream, responseCode, IO.UTF_8, -1);
+        }
 
+        public Response(@Nullable InputStream stream, int responseCode,
+        Charset charset, long contentLength) {
+            this(stream, null, responseCode, charset, contentLength);
+        }
+
+        /**
+         * @param stream The stream of decoded response data.
+         * @param wireStream The stream of data as it was sent over the wire,
+         *     which stream reads from, or null if the data isn't encoded.
+         * @param responseCode The HTTP response code.
+         * @param charset The charset for the response data.
+         * @param contentLength The Content-Length of the response.
+         */
+        public Response(@Nullable InputStream stream,
+        @Nullable IO.CountingInputStream wireStream, int responseCode,
+        Charset charset, long contentLength) {
+            this.stream = new IO.CountingInputStream(
+                stream != null ? stream : IO.emptyInputStream());
+            this.wireStream = wireStream;
             this.responseCode = responseCode;
+            this.charset = charset;
+            this.contentLength = contentLength;
         }
 
         /**
@@ -50,6 +83,38 @@ public class Net {
             return responseCode;
         }
 
+        /**
+         * @return The charset the response body is encoded with.
+         */
+        public Charset getCharset() {
+            return charset;
+        }
+
+        /**
+         * @return The number of bytes read from the network so far, which
+         *     will be fewer than getUncompressedBytes() for compressed data.
+         */
+        public long getCompressedBytes() {
+            IO.CountingInputStream wire = wireStream;
+
+            return wire != null ? wire.getCount() : stream.getCount();
+        }
+
+        /**
+         * @return The number of decoded bytes read from getStream() so far.
+         */
+        public long getUncompressedBytes() {
+            return stream.getCount();
+        }
+
+        /**
+         * @return The Content-Length of the response, as sent over the wire,
+         *     or a negative number if the length is not known.
+         */
+        public long getContentLength() {
+            return contentLength;
+        }
+
         /**
          * Download the entire request to a string.
          *
@@ -58,7 +123,7 @@ public class Net {
          * @return All of the request data.
          */
         public String download() throws IOException {
-            return IO.streamToString(stream);
+            return IO.streamToString(stream, charset, contentLength);
         }
 
         /**
@@ -67,30 +132,307 @@ public class Net {
         public boolean failure() {
             return responseCode >= 400;
         }
+
+        /**
+         * Set the request the response came from, so the response can be
+         * aborted.
+         *
+         * @param request The request which was executed.
+         */
+        void setRequest(@Nullable HttpUriRequest request) {
+            this.request = request;
+        }
+
+        /**
+         * Set the error which stopped the request from being made.
+         *
+         * @param error The error from the client.
+         */
+        void setError(@Nullable IOException error) {
+            this.error = error;
+        }
+
+        /**
+         * @return The error which stopped the request from being made, or
+         *     from the body being opened, or null. The response code is
+         *     GENERIC_FAILURE when there is an error.
+         */
+        public @Nullable IOException getError() {
+            return error;
+        }
+
+        /**
+         * Close the response stream.
+         *
+         * Pooled connections are only reused after the stream is closed,
+         * so responses which are not downloaded should be closed. With a
+         * pooled client, closing the stream reads the rest of the response
+         * so the connection can be reused. Use abort() instead to stop
+         * reading a large response early.
+         */
+        @Override
+        public void close() {
+            IO.close(stream);
+        }
+
+        /**
+         * Abort the request the response came from, dropping the connection
+         * without reading the rest of the response, and close the stream.
+         */
+        public void abort() {
+            HttpUriRequest req = request;
+
+            if (req != null) {
+                req.abort();
+            }
+
+            IO.close(stream);
+        }
+    }
+
+    private static @Nullable PooledHTTPClient sharedClient;
+
+    /**
+     * Get the HTTP client shared by the whole process, creating it if needed.
+     *
+     * @return The shared pooled client.
+     */
+    public static synchronized PooledHTTPClient sharedClient() {
+        PooledHTTPClient client = sharedClient;
+
+        if (client == null || client.isShutdown()) {
+            client = new PooledHTTPClient();
+            sharedClient = client;
+        }
+
+        return client;
+    }
+
+    /**
+     * Replace the shared HTTP client, for instance with one with
+     * different connection limits. The previous client is not shut down.
+     *
+     * @param client The new shared client.
+     */
+    public static synchronized void setSharedClient(PooledHTTPClient client) {
+        sharedClient = client;
+    }
+
+    /**
+     * Shut down the shared HTTP client, closing all of its connections.
+     *
+     * A new client will be created the next time one is needed.
+     */
+    public static synchronized void shutdown() {
+        PooledHTTPClient client = sharedClient;
+
+        if (client != null) {
+            client.shutdown();
+            sharedClient = null;
+        }
     }
 
+    /**
+     * Execute a request with the shared HTTP client.
+     *
+     * @param request The request to execute.
+     * @return The response, which will have a failure code if the request
+     *     could not be made.
+     */
+    public static Response openRequest(HttpUriRequest request) {
+        return openRequest(sharedClient().getClient(), request);
+    }
+
+    /**
+     * Execute a request with a given HTTP client.
+     *
+     * @param client The client to execute the request with.
+     * @param request The request to execute.
+     * @return The response, which will have a failure code if the request
+     *     could not be made.
+     */
     @SuppressWarnings("resource")
-	public static Response openRequest(HttpUriRequest request) {
+    public static Response openRequest(
+    HttpClient client, HttpUriRequest request) {
         @Nullable InputStream stream = null;
+        @Nullable IO.CountingInputStream wireStream = null;
         int responseCode = Response.GENERIC_FAILURE;
+        Charset charset = IO.UTF_8;
+        long contentLength = -1;
+        IOException error = null;
 
         try {
-            HttpResponse response = new DefaultHttpClient().execute(request);
+            HttpResponse response = client.execute(request);
             HttpEntity entity = response.getEntity();
-            stream = entity.getContent();
             responseCode = response.getStatusLine().getStatusCode();
-        } catch (IOException e) { }
 
-        return new Response(stream, responseCode);
+            if (entity != null) {
+                wireStream = new IO.CountingInputStream(entity.getContent());
+
+                try {
+                    stream = decode(wireStream, entity.getContentEncoding());
+                } catch (IOException e) {
+                    // The body can't be read, so drop the connection instead
+                    // of leaving it checked out of the pool.
+                    request.abort();
+                    IO.close(wireStream);
+                    wireStream = null;
+                    responseCode = Response.GENERIC_FAILURE;
+                    throw e;
+                }
+
+                charset = charset(entity);
+                contentLength = entity.getContentLength();
+            }
+        } catch (IOException e) {
+            error = e;
+        }
+
+        Response result = new Response(stream, wireStream, responseCode,
+            charset, contentLength);
+        result.setRequest(request);
+        result.setError(error);
+
+        return result;
     }
 
+    /**
+     * Download a URI directly to a file with the shared HTTP client,
+     * continuing an earlier partial download of the file if possible.
+     *
+     * This method blocks, so it MUST NOT be called from the UI thread.
+     *
+     * @param uri The URI to download.
+     * @param file The file to write to.
+     * @param listener A listener for progress updates, or null.
+     * @param rotator A FileRotator to add the finished file to, or null.
+     * @return A description of the finished download.
+     * @throws IOException If the download fails or is incomplete.
+     * @see FileDownloader
+     */
+    public static FileDownloader.Download downloadToFile(URI uri, File file,
+    @Nullable FileDownloader.ProgressListener listener,
+    @Nullable FileRotator rotator) throws IOException {
+        return new FileDownloader(sharedClient().getClient(), listener,
+            rotator).download(uri, file);
+    }
+
+    /**
+     * @param entity An HTTP entity.
+     * @return A stream of the entity content, decompressed according to
+     *     the Content-Encoding of the entity.
+     */
+    public static InputStream content(HttpEntity entity) throws IOException {
+        InputStream in = Coerce.notnull(entity.getContent());
+
+        try {
+            return decode(in, entity.getContentEncoding());
+        } catch (IOException e) {
+            // Release the connection if the compressed data is bad.
+            IO.close(in);
+            throw e;
+        }
+    }
+
+    /**
+     * Wrap a stream to decompress it as it is read, according to a
+     * Content-Encoding header.
+     *
+     * @param in The stream of data as it was sent.
+     * @param encoding The Content-Encoding header. null will be tolerated.
+     * @return The decompressing stream, or the original stream if the data
+     *     doesn't need decoding.
+     */
+    public static InputStream decode(
+    InputStream in, @Nullable Header encoding) throws IOException {
+        String name = encoding != null
+            ? Coerce.def(encoding.getValue()).trim().toLowerCase(Locale.US)
+            : "";
+
+        if (name.equals("gzip") || name.equals("x-gzip")) {
+            return new GZIPInputStream(in, BufferPool.DEFAULT_BUFFER_SIZE);
+        }
+
+        if (name.equals("deflate")) {
+            return inflate(in);
+        }
+
+        return in;
+    }
+
+    private static final class OwnInflaterInputStream
+    extends InflaterInputStream {
+        OwnInflaterInputStream(InputStream in, boolean nowrap) {
+            super(in, new Inflater(nowrap), BufferPool.DEFAULT_BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                // Our own Inflater isn't released by InflaterInputStream.
+                inf.end();
+            }
+        }
+    }
+
+    private static InputStream inflate(InputStream in) throws IOException {
+        // Servers disagree about whether deflate means zlib wrapped or raw
+        // deflate data, so look at the first two bytes to find out which.
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] head = new byte[2];
+        int len = 0;
+
+        while (len < head.length) {
+            int read = pushback.read(head, len, head.length - len);
+
+            if (read == -1) {
+                break;
+            }
+
+            len += read;
+        }
+
+        pushback.unread(head, 0, len);
+
+        int header = ((head[0] & 0xff) << 8) | (head[1] & 0xff);
+
+        boolean zlib = len == 2 && (head[0] & 0x0f) == 8 && header % 31 == 0;
+
+        return new OwnInflaterInputStream(pushback, !zlib);
+    }
+
+    /**
+     * @param entity An HTTP entity.
+     * @return The charset named in the Content-Type of the entity,
+     *     or UTF-8 if no charset was given.
+     */
+    public static Charset charset(HttpEntity entity) {
+        String name = null;
+
+        try {
+            name = EntityUtils.getContentCharSet(entity);
+        } catch (ParseException e) { }
+
+        return IO.charset(name);
+    }
+
+    /**
+     * The Accept-Encoding sent with requests by default.
+     */
+    public static final String ACCEPT_ENCODING = "gzip, deflate";
+
     /*
+     * Compressed responses are requested by default. The headers given
+     * will replace the default headers.
+     *
      * @param
      *
      * @return A GET request object.
      */
     public static HttpGet prepareGet(URI uri, Header... headerList) {
-        HttpGet request = new HttpGet(uri);
+        HttpGet request = prepareGet(uri);
 
         for (Header header : headerList) {
             request.setHeader(header);
@@ -100,7 +442,11 @@ public class Net {
     }
 
     public static HttpGet prepareGet(URI uri) {
-        return new HttpGet(uri);
+        HttpGet request = new HttpGet(uri);
+
+        request.setHeader("Accept-Encoding", ACCEPT_ENCODING);
+
+        return request;
     }
 
     public static Header authHeader(String username, String password) {
@@ -7,10 +7,23 @@ package com.w0rp.androidutils;
 public final class NetworkFailure {
     private final Exception exception;
     private final int responseCode;
+    private final boolean transportFailure;
 
     public NetworkFailure(Exception exception, int responseCode) {
+        this(exception, responseCode, false);
+    }
+
+    /**
+     * @param exception The exception that caused the problem.
+     * @param responseCode The HTTP response code.
+     * @param transportFailure true if the connection failed while the
+     *     response was being read, after the response code was received.
+     */
+    public NetworkFailure(Exception exception, int responseCode,
+    boolean transportFailure) {
         this.exception = exception;
         this.responseCode = responseCode;
+        this.transportFailure = transportFailure;
     }
 
     /**
@@ -26,4 +39,13 @@ public final class NetworkFailure {
     public int getResponseCode() {
         return responseCode;
     }
+
+    /**
+     * @return true if the connection failed while the response was being
+     *     read, such as a reset or a timeout part way through the body.
+     *     The response code is still the code the server sent.
+     */
+    public boolean isTransportFailure() {
+        return transportFailure;
+    }
 }
@@ -1,12 +1,23 @@
 package com.w0rp.androidutils;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpUriRequest;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.message.BasicHeader;
 import org.eclipse.jdt.annotation.Nullable;
 
 import android.os.AsyncTask;
@@ -15,13 +26,16 @@ import android.os.Looper;
 /**
  * This class encapsulates management of a background network task for an
  * Android application. Network data is loaded via an HTTP request, and
- * parsed with some implementation of a parser. The requests save the value
- * of the Last-Modified header, and subclasses must implement their own
- * result caching.
+ * parsed with some implementation of a parser. The requests save the values
+ * of the Last-Modified and ETag headers, and subclasses must implement their
+ * own result caching, unless a DiskResponseCache is returned from getCache()
+ * or a ResultCache is returned from getResultCache().
  *
  * Concrete subclasses must implement the following:
  *
- * parsData(result) This method must return the result of parsing the data.
+ * parseStream(in, charset) or parseReader(reader) This method must return
+ *     the result of parsing the data as it arrives. Subclasses which need
+ *     the data as a string can implement parseData(data) instead.
  * getURI() This method defines the URI to request.
  * onReceiveResult(result) Run on the UI thread when a result is retrieved.
  * onReceiveFaiure(failure) Run on the UI thread when something goes wrong.
@@ -30,56 +44,504 @@ import android.os.Looper;
  * @param <Result> The result type returned by the background task.
  */
 public abstract class NetworkLoader<Result> {
-    private final class Task extends AsyncTask<Void, Void, Result> {
+    /**
+     * The stream of a response body given to parseStream(), which carries
+     * the length of the body, so the default parser can size its buffer.
+     *
+     * When the body is being written to the cache, close() is ignored, so
+     * a parser closing the stream doesn't stop the rest of the data being
+     * read into the cache.
+     */
+    private static final class BodyInputStream extends FilterInputStream {
+        private final long length;
+        private final boolean keepOpen;
+        // The first error from reading the data, as opposed to parsing it.
+        private @Nullable IOException readError = null;
+
+        BodyInputStream(InputStream in, long length, boolean keepOpen) {
+            super(in);
+            this.length = length;
+            this.keepOpen = keepOpen;
+        }
+
+        private IOException failed(IOException e) {
+            if (readError == null) {
+                readError = e;
+            }
+
+            return e;
+        }
+
+        @Override
+        public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public int read(@Nullable byte[] buffer, int offset, int length)
+        throws IOException {
+            try {
+                return super.read(buffer, offset, length);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            try {
+                return super.skip(n);
+            } catch (IOException e) {
+                throw failed(e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!keepOpen) {
+                super.close();
+            }
+        }
+    }
+
+    /**
+     * The reader given to parseReader() by default, which carries the
+     * length of the body from a BodyInputStream.
+     */
+    private static final class BodyReader extends InputStreamReader {
+        private final long length;
+
+        BodyReader(InputStream in, Charset charset, long length) {
+            super(in, charset);
+            this.length = length;
+        }
+    }
+
+    /**
+     * The outcome of loading a URI, which may be shared between loaders.
+     */
+    private static final class Outcome<R> {
+        private @Nullable R result = null;
+        private @Nullable NetworkFailure failure = null;
+        private boolean modified = true;
+        private @Nullable String lastModified = null;
+        private @Nullable String eTag = null;
+        // true when lastModified and eTag came with a new body.
+        private boolean validated = false;
+        // true when the result came from the ResultCache after a 304.
+        private boolean reused = false;
+        // true when the server sent a 304, even if a result was replayed.
+        private boolean notModified = false;
+    }
+
+    /**
+     * A request in progress, which loaders for the same URI can wait on
+     * instead of making requests of their own.
+     */
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final @Nullable String sentLastModified;
+        private final @Nullable String sentETag;
+        private volatile @Nullable Outcome<?> outcome = null;
+        // true when the loader making the request was cancelled.
+        private volatile boolean cancelled = false;
+
+        Flight(@Nullable String sentLastModified, @Nullable String sentETag) {
+            this.sentLastModified = sentLastModified;
+            this.sentETag = sentETag;
+        }
+
+        void finish(@Nullable Outcome<?> outcome, boolean cancelled) {
+            this.outcome = outcome;
+            this.cancelled = cancelled;
+            done.countDown();
+        }
+    }
+
+    private static final ConcurrentHashMap<String, Flight> flightMap =
+        new ConcurrentHashMap<String, Flight>();
+
+    private static boolean equal(
+    @Nullable String left, @Nullable String right) {
+        return left == null ? right == null : left.equals(right);
+    }
+
+    private final class Task extends AsyncTask<Void, Result, Result> {
         private @Nullable NetworkFailure failure = null;
         private boolean modified = true;
+        private boolean reused = false;
+        // true when a result should be read from the disk cache and
+        // delivered before revalidating it.
+        private final boolean deliverCached;
+        private volatile boolean staleDelivered;
+        // true when the outcome may be shared with other loaders.
+        private boolean coalesced = false;
+        private boolean revalidated = false;
+        private long staleTime = 0;
+
+        Task(boolean staleDelivered) {
+            this.staleDelivered = staleDelivered;
+            this.deliverCached = !staleDelivered && staleWhileRevalidate();
+        }
+
+        private HttpUriRequest prepareRequest(
+        @Nullable String lastModified, @Nullable String eTag) {
+            HttpGet request = Net.prepareGet(getURI());
 
-        private HttpUriRequest prepareRequest() {
-            if (lastModifiedString == null) {
-                // Don't set the If-Modified-Since header when we can't.
-                return Net.prepareGet(getURI());
+            // Both validators are sent when we have them, and servers
+            // will use whichever they support.
+            if (lastModified != null) {
+                request.setHeader("If-Modified-Since", lastModified);
             }
 
-            // The If-Modified-Since header is sent with the request.
-            return Net.prepareGet(getURI(),
-                new BasicHeader("If-Modified-Since", lastModifiedString));
+            if (eTag != null) {
+                request.setHeader("If-None-Match", eTag);
+            }
+
+            return request;
         }
 
-        @Override
-        protected @Nullable Result doInBackground(Void... params) {
-            Result result = null;
+        private Outcome<Result> load(@Nullable DiskResponseCache cache,
+        @Nullable DiskResponseCache.Entry cached) {
+            RetryPolicy policy = getRetryPolicy();
+            HostCircuitBreaker breaker = getCircuitBreaker();
+            String host = getURI().getHost();
+
+            for (int attempt = 1;; ++attempt) {
+                if (breaker != null && !breaker.allowRequest(host)) {
+                    // Fail fast, as the host has been failing.
+                    Outcome<Result> outcome = new Outcome<Result>();
+                    outcome.failure = new NetworkFailure(
+                        new HostCircuitBreaker.OpenException(
+                            Coerce.def(host)),
+                        Net.Response.GENERIC_FAILURE);
+
+                    return outcome;
+                }
+
+                Outcome<Result> outcome = attempt(cache, cached);
+                NetworkFailure failure = outcome.failure;
+
+                if (breaker != null) {
+                    if (failure != null
+                    && RetryPolicy.isHostFailure(failure)) {
+                        breaker.recordFailure(host);
+                    } else {
+                        breaker.recordSuccess(host);
+                    }
+                }
+
+                if (failure == null || isCancelled()
+                || !policy.shouldRetry(failure, attempt)) {
+                    return outcome;
+                }
+
+                try {
+                    Thread.sleep(policy.getDelay(attempt));
+                } catch (InterruptedException e) {
+                    // The task was cancelled while we were waiting.
+                    return outcome;
+                }
+            }
+        }
+
+        private Outcome<Result> attempt(@Nullable DiskResponseCache cache,
+        @Nullable DiskResponseCache.Entry cached) {
+            Outcome<Result> outcome = new Outcome<Result>();
             Header lastModified = null;
+            Header eTag = null;
             int responseCode = 600;
+            DiskResponseCache.Writer writer = null;
+            BodyInputStream body = null;
 
             try {
-                HttpUriRequest request = prepareRequest();
-                HttpResponse response = new DefaultHttpClient().execute(
-                    request);
+                HttpUriRequest request = prepareRequest(
+                    sentLastModified(cache, cached),
+                    sentETag(cache, cached));
+                HttpResponse response = getClient().execute(request);
 
                 responseCode = response.getStatusLine().getStatusCode();
                 lastModified = response.getFirstHeader("Last-Modified");
+                eTag = response.getFirstHeader("ETag");
+
+                HttpEntity entity = response.getEntity();
+
+                if (responseCode >= 400) {
+                    if (entity != null) {
+                        // Release the connection back to the pool.
+                        entity.consumeContent();
+                    }
+
+                    throw new IOException(
+                        "HTTP error response code: " + responseCode);
+                }
 
                 if (responseCode == 304) {
                     // The post list hasn't been modified, so stop here.
+                    outcome.modified = false;
+                    outcome.notModified = true;
+                    notModifiedCount.incrementAndGet();
+                    totalNotModifiedCount.incrementAndGet();
+
+                    if (entity != null) {
+                        // Release the connection back to the pool.
+                        entity.consumeContent();
+                    }
+
+                    if (cache != null && cached != null) {
+                        cache.refresh(cached);
+                    }
+
+                    if (staleDelivered && !coalesced) {
+                        // We have shown the result already. A shared
+                        // outcome still needs the result for other loaders.
+                        return outcome;
+                    }
+
+                    ResultCache results = getResultCache();
+
+                    if (results != null) {
+                        @SuppressWarnings("unchecked")
+                        Result reused = (Result) results.get(resultKey(),
+                            validator(sentLastModified(cache, cached),
+                                sentETag(cache, cached)));
+
+                        if (reused != null) {
+                            outcome.result = reused;
+                            outcome.reused = true;
+                            return outcome;
+                        }
+                    }
+
+                    if (cached == null) {
+                        return outcome;
+                    }
+
+                    // Replay the cached body, as if it had been sent again.
+                    outcome.modified = true;
+
+                    InputStream stored;
+
+                    try {
+                        stored = cached.openBody();
+                    } catch (IOException e) {
+                        // We can't use the body we were told to use, so
+                        // ask for it again without validators.
+                        return attempt(cache, null);
+                    }
+
+                    try {
+                        outcome.result = parse(stored, cached.getCharset(),
+                            cached.getBodyLength(), false);
+                    } finally {
+                        IO.close(stored);
+                    }
+
+                    storeResult(outcome.result, validator(
+                        cached.getLastModified(), cached.getETag()));
+
+                    return outcome;
+                }
+
+                Charset charset = Net.charset(entity);
+                InputStream in = Net.content(entity);
+
+                if (cache != null) {
+                    writer = cache.edit(getURI(),
+                        lastModified != null ? lastModified.getValue() : null,
+                        eTag != null ? eTag.getValue() : null,
+                        charset);
+
+                    if (writer != null) {
+                        in = writer.tee(in);
+                    }
+                }
+
+                body = new BodyInputStream(in,
+                    entity != null ? entity.getContentLength() : -1,
+                    writer != null);
+
+                try {
+                    outcome.result = parseStream(body, charset);
+
+                    storeResult(outcome.result, validator(
+                        lastModified != null ? lastModified.getValue() : null,
+                        eTag != null ? eTag.getValue() : null));
+
+                    if (writer != null) {
+                        // Parsers can stop before the end of the data,
+                        // so read whatever is left into the cache.
+                        IO.drain(body);
+                        // Only store bodies we could parse.
+                        writer.commit();
+                    }
+                } finally {
+                    IO.close(in);
+                }
+            } catch (Exception exception) {
+                if (writer != null) {
+                    writer.abort();
+                }
+
+                IOException readError = body != null ? body.readError : null;
+
+                // A failure reading the body is a failure of the connection,
+                // even when the parser reports it as something else.
+                outcome.failure = readError != null
+                    ? new NetworkFailure(readError, responseCode, true)
+                    : new NetworkFailure(exception, responseCode);
+                return outcome;
+            }
+
+            // Keep the validators exactly as the server set them. A new
+            // body replaces both, so a missing header clears the old one.
+            outcome.validated = true;
+            outcome.lastModified = lastModified != null
+                ? lastModified.getValue()
+                : null;
+            outcome.eTag = eTag != null ? eTag.getValue() : null;
+
+            return outcome;
+        }
+
+        @SuppressWarnings("unchecked")
+        private Outcome<Result> coalescedLoad(
+        @Nullable DiskResponseCache cache,
+        @Nullable DiskResponseCache.Entry cached) throws InterruptedException {
+            String key = resultKey();
+            String sentLastModified = sentLastModified(cache, cached);
+            String sentETag = sentETag(cache, cached);
+            Flight flight = new Flight(sentLastModified, sentETag);
+            Flight existing = flightMap.putIfAbsent(key, flight);
+
+            if (existing == null) {
+                // There's no request in progress, so we make it.
+                Outcome<Result> outcome = null;
+
+                try {
+                    outcome = load(cache, cached);
+                } finally {
+                    // Waiting loaders will make their own requests if
+                    // this one was stopped by an error or cancelled.
+                    flightMap.remove(key, flight);
+                    flight.finish(outcome, isCancelled()
+                        || Thread.currentThread().isInterrupted());
+                }
+
+                return Coerce.notnull(outcome);
+            }
+
+            existing.done.await();
+
+            Outcome<Result> outcome = (Outcome<Result>) existing.outcome;
+
+            if (outcome == null || existing.cancelled
+            || (!outcome.modified
+                && (!equal(existing.sentLastModified, sentLastModified)
+                || !equal(existing.sentETag, sentETag)))) {
+                // The other request was cancelled, or validated against a
+                // result we don't have, so we need to make our own request.
+                return load(cache, cached);
+            }
+
+            return outcome;
+        }
+
+        /**
+         * Deliver the result stored in the disk cache, if it isn't too old.
+         *
+         * @return true if the stored result is fresh enough that it doesn't
+         *     need to be revalidated.
+         */
+        @SuppressWarnings("unchecked")
+        private boolean deliverCached(DiskResponseCache.Entry cached) {
+            long age = System.currentTimeMillis() - cached.getStoredTime();
+
+            if (age > getMaxStale()) {
+                return false;
+            }
+
+            Result stale;
+
+            try {
+                InputStream body = cached.openBody();
+
+                try {
+                    stale = parse(body, cached.getCharset(),
+                        cached.getBodyLength(), false);
+                } finally {
+                    IO.close(body);
+                }
+            } catch (Exception e) {
+                // We'll just load the result from the network instead.
+                return false;
+            }
+
+            staleTime = cached.getStoredTime();
+            staleDelivered = true;
+            publishProgress(stale);
+
+            return age < getMaxAge();
+        }
+
+        @Override
+        protected @Nullable Result doInBackground(Void... params) {
+            Outcome<Result> outcome;
+            DiskResponseCache.Entry cached = null;
+
+            try {
+                DiskResponseCache cache = getCache();
+                cached = cache != null ? cache.get(getURI()) : null;
+
+                if (deliverCached && cached != null && deliverCached(cached)) {
+                    // The cached result is fresh, so we can stop here.
                     modified = false;
                     return null;
                 }
 
-                String data = IO.streamToString(
-                    response.getEntity().getContent());
-
-                result = parseData(data);
+                revalidated = true;
+                coalesced = coalesceRequests();
+                outcome = coalesced
+                    ? coalescedLoad(cache, cached)
+                    : load(cache, cached);
             } catch (Exception exception) {
-                failure = new NetworkFailure(exception, responseCode);
+                failure = new NetworkFailure(exception, 600);
                 return null;
+            } finally {
+                IO.close(cached);
             }
 
-            if (lastModified != null) {
-                // Set the last modified string, as set by the server exactly.
-                lastModifiedString = lastModified.getValue();
+            failure = outcome.failure;
+
+            if (staleDelivered && failure == null && outcome.notModified) {
+                // The result we already delivered is still current, so
+                // skip the result replayed for other loaders.
+                modified = false;
+                return null;
+            }
+
+            modified = outcome.modified;
+            reused = outcome.reused;
+
+            if (outcome.validated) {
+                lastModifiedString = outcome.lastModified;
+                eTagString = outcome.eTag;
             }
 
-            return result;
+            return outcome.result;
+        }
+
+        @Override
+        protected void onProgressUpdate(Result... values) {
+            super.onProgressUpdate(values);
+
+            // The result from the disk cache was parsed.
+            rememberResult(values[0], staleTime);
+            onReceiveResult(values[0]);
         }
 
         @Override
@@ -90,7 +552,15 @@ public abstract class NetworkLoader<Result> {
                 onReceiveFailure(failure);
             } else {
                 if (modified) {
+                    rememberResult(result, System.currentTimeMillis());
                     onReceiveResult(result);
+                } else if (reused && result != null) {
+                    useLastResult(result);
+                } else if (staleDelivered) {
+                    // The result we already delivered is still current.
+                    if (revalidated) {
+                        lastResultTime = System.currentTimeMillis();
+                    }
                 } else {
                     useLastResult();
                 }
@@ -104,8 +574,110 @@ public abstract class NetworkLoader<Result> {
         }
     }
 
+    private static final AtomicLong totalNotModifiedCount = new AtomicLong();
+
+    @SuppressWarnings("null")
+    private static volatile Executor defaultExecutor =
+        AsyncTask.SERIAL_EXECUTOR;
+
+    /**
+     * @return A key for results from this loader, which is different for
+     *     other URIs and loader classes.
+     */
+    private String resultKey() {
+        return getClass().getName() + " " + getURI();
+    }
+
+    /**
+     * @return A single validator combining both validators, or null if
+     *     there are no validators.
+     */
+    private static @Nullable String validator(
+    @Nullable String lastModified, @Nullable String eTag) {
+        if (lastModified == null && eTag == null) {
+            return null;
+        }
+
+        return Coerce.def(eTag) + "\n" + Coerce.def(lastModified);
+    }
+
+    /**
+     * Store a result in the ResultCache, if there is one.
+     */
+    private void storeResult(
+    @Nullable Result result, @Nullable String validator) {
+        ResultCache results = getResultCache();
+
+        // Results without validators could never be used again.
+        if (results != null && result != null && validator != null) {
+            results.put(resultKey(), validator, result, sizeOf(result));
+        }
+    }
+
+    /**
+     * @return The validator to send for If-Modified-Since.
+     */
+    private @Nullable String sentLastModified(
+    @Nullable DiskResponseCache cache,
+    @Nullable DiskResponseCache.Entry cached) {
+        // When a cache is used, the validators have to match the cached
+        // body, otherwise we could be told to use a body we don't have.
+        if (cache != null) {
+            return cached != null ? cached.getLastModified() : null;
+        }
+
+        return lastModifiedString;
+    }
+
+    /**
+     * @return The validator to send for If-None-Match.
+     */
+    private @Nullable String sentETag(
+    @Nullable DiskResponseCache cache,
+    @Nullable DiskResponseCache.Entry cached) {
+        if (cache != null) {
+            return cached != null ? cached.getETag() : null;
+        }
+
+        return eTagString;
+    }
+
+    /**
+     * Parse a response body with parseStream(in, charset).
+     *
+     * @param length The length of the body in bytes, or -1.
+     * @param keepOpen true if closing the stream should be ignored.
+     */
+    private Result parse(InputStream in, Charset charset, long length,
+    boolean keepOpen) throws Exception {
+        return parseStream(new BodyInputStream(in, length, keepOpen),
+            charset);
+    }
+
     private @Nullable Task currentTask = null;
-    private @Nullable String lastModifiedString;
+    // The last result is only kept for stale-while-revalidate.
+    // It is only accessed from the UI thread.
+    private @Nullable Result lastResult = null;
+    private long lastResultTime = 0;
+    private volatile @Nullable String lastModifiedString;
+    private volatile @Nullable String eTagString;
+    private final AtomicLong notModifiedCount = new AtomicLong();
+
+    /**
+     * @return The number of requests made by all loaders which ended with
+     *     a 304: Not Modified response.
+     */
+    public static long getTotalNotModifiedCount() {
+        return totalNotModifiedCount.get();
+    }
+
+    /**
+     * @return The number of requests made by this loader which ended with
+     *     a 304: Not Modified response.
+     */
+    public final long getNotModifiedCount() {
+        return notModifiedCount.get();
+    }
 
     /**
      * Cancel the current network task. The task is run on another thread,
@@ -132,24 +704,350 @@ public abstract class NetworkLoader<Result> {
     public final void execute() {
         cancel();
 
-        currentTask = new Task();
-        currentTask.execute();
+        boolean staleDelivered = false;
+        Result stale = lastResult;
+
+        if (stale != null && staleWhileRevalidate()) {
+            long age = System.currentTimeMillis() - lastResultTime;
+
+            if (age <= getMaxStale()) {
+                onReceiveResult(stale);
+
+                if (age < getMaxAge()) {
+                    // The last result is fresh enough already.
+                    return;
+                }
+
+                staleDelivered = true;
+            }
+        }
+
+        Task task = new Task(staleDelivered);
+        Executor executor = getExecutor();
+
+        if (executor instanceof PriorityScheduler) {
+            executor = ((PriorityScheduler) executor).executor(
+                getPriority(), getURI().getHost());
+        }
+
+        currentTask = task;
+        task.executeOnExecutor(executor);
+    }
+
+    /**
+     * Set the Executor used by loaders which don't choose their own.
+     *
+     * @param executor The executor for loader tasks.
+     */
+    public static void setDefaultExecutor(Executor executor) {
+        defaultExecutor = executor;
+    }
+
+    /**
+     * @return The Executor used by loaders which don't choose their own.
+     */
+    public static Executor getDefaultExecutor() {
+        return defaultExecutor;
+    }
+
+    /**
+     * This method is called on the UI thread to choose the Executor the
+     * loader task will run with.
+     *
+     * When a PriorityScheduler is returned, the task is scheduled with
+     * the priority from getPriority() and the host from getURI(), so
+     * getURI() will also be called on the UI thread.
+     *
+     * By default, the executor from getDefaultExecutor() is used, which is
+     * the AsyncTask serial executor unless it has been changed.
+     *
+     * @return The executor for the loader task.
+     */
+    protected Executor getExecutor() {
+        return defaultExecutor;
+    }
+
+    /**
+     * This method is called on the UI thread to choose the priority of the
+     * loader task, when getExecutor() returns a PriorityScheduler.
+     *
+     * By default, loaders have PriorityScheduler.PRIORITY_NORMAL.
+     *
+     * @return A priority, such as PriorityScheduler.PRIORITY_VISIBLE.
+     */
+    protected int getPriority() {
+        return PriorityScheduler.PRIORITY_NORMAL;
+    }
+
+    private void rememberResult(@Nullable Result result, long time) {
+        if (staleWhileRevalidate()) {
+            lastResult = result;
+            lastResultTime = time;
+        }
+    }
+
+    /**
+     * This method is called to decide if the last known result should be
+     * delivered immediately when the loader is executed, before the result
+     * is revalidated in the background.
+     *
+     * The last result is kept in memory, or read from the disk cache when
+     * getCache() returns a cache. After the last result is delivered,
+     * onReceiveResult(result) will only be called again if the result
+     * has changed. onReceiveFailure(failure) will still be called if
+     * revalidation fails.
+     *
+     * By default, results are not delivered before revalidation.
+     *
+     * This method MUST be safe to call from any thread.
+     *
+     * @return true if stale results should be delivered immediately.
+     */
+    protected boolean staleWhileRevalidate() {
+        return false;
+    }
+
+    /**
+     * This method is called to get the age in milliseconds under which the
+     * last result will be delivered without revalidating it at all, when
+     * staleWhileRevalidate() returns true.
+     *
+     * By default, results are always revalidated.
+     *
+     * This method MUST be safe to call from any thread.
+     *
+     * @return The maximum age for a result which needs no revalidation.
+     */
+    protected long getMaxAge() {
+        return 0;
+    }
+
+    /**
+     * This method is called to get the age in milliseconds over which the
+     * last result will not be delivered before revalidating it, when
+     * staleWhileRevalidate() returns true.
+     *
+     * By default, results of any age will be delivered.
+     *
+     * This method MUST be safe to call from any thread.
+     *
+     * @return The maximum age for a result to be delivered while stale.
+     */
+    protected long getMaxStale() {
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * This method is called to retrieve the HTTP client used for requests.
+     *
+     * By default, the client shared by the whole process is used, so
+     * connections are kept alive between requests.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @return The HTTP client to execute requests with.
+     */
+    protected HttpClient getClient() {
+        return Net.sharedClient().getClient();
+    }
+
+    /**
+     * This method is called to retrieve a cache for storing responses on
+     * disk. When a cache is returned, a 304 response will parse the body
+     * stored in the cache and call onReceiveResult(result), instead of
+     * calling useLastResult().
+     *
+     * By default, no cache is used.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @return The cache to use, or null.
+     */
+    protected @Nullable DiskResponseCache getCache() {
+        return null;
+    }
+
+    /**
+     * This method is called to retrieve a cache for keeping parsed results
+     * in memory. Results are stored with the validators they were loaded
+     * with, and a 304 response will call useLastResult(result) with the
+     * result from the cache.
+     *
+     * The same cache can be shared by every loader in a process. Results
+     * are stored by URI and loader class.
+     *
+     * By default, no cache is used.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @return The cache to use, or null.
+     */
+    protected @Nullable ResultCache getResultCache() {
+        return null;
     }
 
     /**
-     * This method is called with the data from the HTTP response.
+     * This method is called to weigh results for the ResultCache.
+     * The weight should be roughly proportional to the memory the result
+     * uses, such as an estimate of its size in bytes.
+     *
+     * By default, every result weighs 1.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @param result A parsed result.
+     * @return The weight of the result.
+     */
+    protected long sizeOf(Result result) {
+        return 1;
+    }
+
+    /**
+     * This method is called to retrieve the policy for retrying requests
+     * which fail in ways which could succeed if tried again.
+     *
+     * The task waits for the delay between attempts on its own thread, so
+     * loaders which retry should choose an executor which runs tasks in
+     * parallel. See getExecutor().
+     *
+     * By default, requests are not retried.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @return The retry policy to use.
+     */
+    protected RetryPolicy getRetryPolicy() {
+        return RetryPolicy.NONE;
+    }
+
+    /**
+     * This method is called to retrieve a circuit breaker for stopping
+     * requests to hosts which keep failing. Requests stopped by the breaker
+     * fail with a HostCircuitBreaker.OpenException.
+     *
+     * The same breaker should be returned by every loader using it.
+     *
+     * By default, no circuit breaker is used.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @return The circuit breaker to use, or null.
+     */
+    protected @Nullable HostCircuitBreaker getCircuitBreaker() {
+        return null;
+    }
+
+    /**
+     * This method is called to decide if requests for the same URI made
+     * at the same time by loaders of the same class should be combined.
+     *
+     * When requests are combined, only one HTTP request is made and the
+     * response is only parsed once. Every loader still receives its own
+     * callbacks, but the same result object is given to each of them, so
+     * results must not be modified. A loader which has sent different
+     * validators will make its own request when the shared request ends
+     * with a 304: Not Modified response, and waiting loaders make their
+     * own requests if the loader making the shared request is cancelled.
+     *
+     * Requests can only be combined when loaders run at the same time,
+     * so they must be executed with an executor which runs tasks in
+     * parallel. See getExecutor().
+     *
+     * By default, requests are not combined.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * @return true if requests should be combined.
+     */
+    protected boolean coalesceRequests() {
+        return false;
+    }
+
+    /**
+     * This method is called with a stream of the HTTP response data, as it
+     * is received, so large responses can be parsed incrementally. This is
+     * the main method for parsing responses.
+     *
+     * By default, the stream is decoded and passed to parseReader(reader).
+     * The stream will be closed after this method returns.
      *
      * This method will be called in some background thread,
      * so care should be taken with thread safety.
      *
      * This method should not be called when an error response is returned.
      *
-     * @param data The HTTP response data.
+     * @param in The HTTP response data, decompressed.
+     * @param charset The charset of the response data.
+     * @return The parsed result data.
+     * @throws Exception Thrown when something goes wrong while parsing.
+     */
+    protected Result parseStream(InputStream in, Charset charset)
+    throws Exception {
+        long length = in instanceof BodyInputStream
+            ? ((BodyInputStream) in).length
+            : -1;
+
+        return parseReader(new BodyReader(in, charset, length));
+    }
+
+    /**
+     * This method is called with a reader for the HTTP response data, as it
+     * is received, so large responses can be parsed incrementally.
+     *
+     * By default, all of the data is read and passed to parseData(data).
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * This method should not be called when an error response is returned.
+     *
+     * @param reader The HTTP response data, decoded.
      * @return The parsed result data.
      * @throws Exception Thrown when something goes wrong while parsing.
      */
-    protected abstract Result parseData(String data) throws Exception;
+    protected Result parseReader(Reader reader) throws Exception {
+        // Size the string for the Content-Length, when we know it.
+        long length = reader instanceof BodyReader
+            ? ((BodyReader) reader).length
+            : -1;
 
+        return parseData(IO.readerToString(reader, length));
+    }
+
+    /**
+     * This method is called with the data from the HTTP response, unless
+     * parseReader(reader) or parseStream(in, charset) is overridden. It is
+     * kept for subclasses written before those methods, and is never
+     * called for subclasses which override them.
+     *
+     * Parsing the whole response from a string needs memory for both the
+     * data and the string, so subclasses parsing large responses should
+     * override one of the other methods instead.
+     *
+     * By default, this throws an UnsupportedOperationException, as one of
+     * the parsing methods must be overridden.
+     *
+     * This method will be called in some background thread,
+     * so care should be taken with thread safety.
+     *
+     * This method should not be called when an error response is returned.
+     *
+     * @param data The HTTP response data.
+     * @return The parsed result data.
+     * @throws Exception Thrown when something goes wrong while parsing.
+     */
+    protected Result parseData(String data) throws Exception {
+        throw new UnsupportedOperationException(getClass().getName()
+            + " must override parseStream(in, charset), parseReader(reader)"
+            + " or parseData(data).");
+    }
 
     /**
      * This method is called to retrieve the URI to be used for network
@@ -164,7 +1062,7 @@ public abstract class NetworkLoader<Result> {
 
     /**
      * This method will be called on the UI thread when the request completes,
-     * with the result of parsing from parseData(data).
+     * with the result from parseStream(in, charset).
      *
      * @param result The parsed result.
      */
@@ -182,4 +1080,16 @@ public abstract class NetworkLoader<Result> {
      * request data should be used.
      */
     protected abstract void useLastResult();
+
+    /**
+     * This method will be called on the UI thread when a 304: Not Modified
+     * response is received, and the result is in the ResultCache.
+     *
+     * By default, this calls useLastResult().
+     *
+     * @param result The result from the ResultCache.
+     */
+    protected void useLastResult(Result result) {
+        useLastResult();
+    }
 }
@@ -0,0 +1,175 @@
+package com.w0rp.androidutils;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+/**
+ * This class wraps an HttpClient which can be shared between threads.
+ * Connections are kept alive in a pool, so repeated requests to the same
+ * host skip the TCP and TLS handshakes.
+ *
+ * Connections which have been idle for too long are closed periodically
+ * by a background thread. shutdown() closes every connection and stops the
+ * background thread.
+ *
+ * Response content must be consumed or closed for a connection to be
+ * returned to the pool.
+ */
+public class PooledHTTPClient {
+    /**
+     * The default maximum number of connections across all hosts.
+     */
+    public static final int DEFAULT_MAX_TOTAL = 20;
+
+    /**
+     * The default maximum number of connections to a single host.
+     */
+    public static final int DEFAULT_MAX_PER_ROUTE = 4;
+
+    /**
+     * The default time in milliseconds a connection may be idle for.
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static final ThreadFactory daemonFactory = new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "PooledHTTPClient-evictor");
+            // The evictor should never keep the process alive.
+            thread.setDaemon(true);
+
+            return thread;
+        }
+    };
+
+    private final DefaultHttpClient client;
+    private final ScheduledExecutorService evictor;
+    private final long idleTimeout;
+    private volatile boolean shutdown = false;
+
+    /**
+     * Create a client with the default limits.
+     */
+    public PooledHTTPClient() {
+        this(DEFAULT_MAX_TOTAL, DEFAULT_MAX_PER_ROUTE, DEFAULT_IDLE_TIMEOUT,
+            TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param maxTotal The maximum number of connections across all hosts.
+     * @param maxPerRoute The maximum number of connections to a single host.
+     * @param idleTimeout The time a connection may be idle before it
+     *     is closed.
+     * @param unit The unit for idleTimeout.
+     */
+    @SuppressWarnings("null")
+    public PooledHTTPClient(int maxTotal, int maxPerRoute,
+    long idleTimeout, TimeUnit unit) {
+        HttpParams params = new BasicHttpParams();
+
+        ConnManagerParams.setMaxTotalConnections(params, maxTotal);
+        ConnManagerParams.setMaxConnectionsPerRoute(params,
+            new ConnPerRouteBean(maxPerRoute));
+        HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http",
+            PlainSocketFactory.getSocketFactory(), 80));
+        registry.register(new Scheme("https",
+            SSLSocketFactory.getSocketFactory(), 443));
+
+        client = new DefaultHttpClient(
+            new ThreadSafeClientConnManager(params, registry), params);
+
+        this.idleTimeout = unit.toMillis(idleTimeout);
+
+        // Check for idle connections twice per timeout period, so no
+        // connection stays idle for much longer than the timeout.
+        long period = Math.max(1, this.idleTimeout / 2);
+
+        evictor = Executors.newSingleThreadScheduledExecutor(daemonFactory);
+        evictor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                closeIdleConnections();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return The HttpClient backed by the connection pool.
+     */
+    public HttpClient getClient() {
+        return client;
+    }
+
+    /**
+     * Execute a request with the pooled client.
+     *
+     * @param request The request to execute.
+     * @return The HTTP response.
+     * @throws IOException When the request fails, or the client has been
+     *     shut down.
+     */
+    @SuppressWarnings("null")
+    public HttpResponse execute(HttpUriRequest request) throws IOException {
+        if (shutdown) {
+            throw new IOException("The HTTP client has been shut down.");
+        }
+
+        return client.execute(request);
+    }
+
+    /**
+     * Close expired connections, and connections which have been idle for
+     * longer than the idle timeout.
+     */
+    public void closeIdleConnections() {
+        if (shutdown) {
+            return;
+        }
+
+        ClientConnectionManager manager = client.getConnectionManager();
+
+        manager.closeExpiredConnections();
+        manager.closeIdleConnections(idleTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Close every connection and stop evicting idle connections.
+     *
+     * The client cannot be used after it has been shut down.
+     */
+    public void shutdown() {
+        shutdown = true;
+        evictor.shutdownNow();
+        client.getConnectionManager().shutdown();
+    }
+
+    /**
+     * @return true if shutdown() has been called.
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+}
@@ -0,0 +1,259 @@
+package com.w0rp.androidutils;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class runs tasks on a bounded number of threads, with tasks of a
+ * higher priority running before tasks of a lower priority. Tasks of the
+ * same priority run in the order they were submitted.
+ *
+ * Tasks can be tagged with a host name, and no more than a given number of
+ * tasks for a single host will run at the same time. Tasks waiting for
+ * their host will let other tasks run before them.
+ *
+ * Tasks submitted with execute(runnable) have PRIORITY_NORMAL and no host.
+ * Use executor(priority, host) to get an Executor for other tasks.
+ */
+public class PriorityScheduler implements Executor {
+    /** The priority for work the user is waiting on. */
+    public static final int PRIORITY_FOREGROUND = 20;
+    /** The priority for work which will be visible to the user. */
+    public static final int PRIORITY_VISIBLE = 10;
+    /** The default priority. */
+    public static final int PRIORITY_NORMAL = 0;
+    /** The priority for work which may be needed later. */
+    public static final int PRIORITY_PREFETCH = -10;
+
+    private static final class Job {
+        private final Runnable runnable;
+        private final int priority;
+        private final @Nullable String host;
+        private final long sequence;
+        private final long enqueueTime = System.nanoTime();
+
+        Job(Runnable runnable, int priority, @Nullable String host,
+        long sequence) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.host = host;
+            this.sequence = sequence;
+        }
+    }
+
+    private static final Comparator<Job> jobOrder = new Comparator<Job>() {
+        @Override
+        public int compare(Job left, Job right) {
+            if (left.priority != right.priority) {
+                // Higher priorities come first.
+                return left.priority > right.priority ? -1 : 1;
+            }
+
+            return left.sequence < right.sequence ? -1
+                : (left.sequence > right.sequence ? 1 : 0);
+        }
+    };
+
+    private final int maxThreads;
+    private final int maxPerHost;
+    private final ThreadPoolExecutor pool;
+    private final TreeSet<Job> queue = new TreeSet<Job>(jobOrder);
+    private final HashMap<String, Integer> hostCountMap =
+        new HashMap<String, Integer>();
+    private long sequence = 0;
+    private int running = 0;
+
+    private long startedCount = 0;
+    private long totalWait = 0;
+    private long maxWait = 0;
+
+    /**
+     * @param maxThreads The maximum number of tasks to run at once.
+     * @param maxPerHost The maximum number of tasks for one host to run
+     *     at once.
+     */
+    public PriorityScheduler(int maxThreads, int maxPerHost) {
+        if (maxThreads <= 0 || maxPerHost <= 0) {
+            throw new IllegalArgumentException("Limits must be > 0");
+        }
+
+        this.maxThreads = maxThreads;
+        this.maxPerHost = maxPerHost;
+
+        // We never hand the pool more tasks than it has threads.
+        pool = new ThreadPoolExecutor(maxThreads, maxThreads, 30,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run a task with PRIORITY_NORMAL and no host.
+     */
+    @Override
+    public void execute(@Nullable Runnable runnable) {
+        submit(Coerce.notnull(runnable), PRIORITY_NORMAL, null);
+    }
+
+    /**
+     * Create an Executor which submits tasks to this scheduler with a given
+     * priority and host.
+     *
+     * @param priority The priority for tasks, such as PRIORITY_VISIBLE.
+     * @param host The host name tasks will connect to, or null.
+     * @return An Executor for the tasks.
+     */
+    public Executor executor(final int priority, final @Nullable String host) {
+        return new Executor() {
+            @Override
+            public void execute(@Nullable Runnable runnable) {
+                submit(Coerce.notnull(runnable), priority, host);
+            }
+        };
+    }
+
+    /**
+     * Submit a task to run.
+     *
+     * @param runnable The task to run.
+     * @param priority The priority for the task, such as PRIORITY_VISIBLE.
+     * @param host The host name the task will connect to, or null.
+     */
+    public void submit(Runnable runnable, int priority, @Nullable String host) {
+        synchronized (this) {
+            queue.add(new Job(runnable, priority, host, sequence++));
+        }
+
+        dispatch();
+    }
+
+    private int hostCount(@Nullable String host) {
+        Integer count = host != null ? hostCountMap.get(host) : null;
+
+        return count != null ? count : 0;
+    }
+
+    private void addHostCount(@Nullable String host, int diff) {
+        if (host != null) {
+            int count = hostCount(host) + diff;
+
+            if (count > 0) {
+                hostCountMap.put(host, count);
+            } else {
+                hostCountMap.remove(host);
+            }
+        }
+    }
+
+    /**
+     * Start as many queued tasks as the limits allow.
+     */
+    private void dispatch() {
+        while (true) {
+            final Job job;
+
+            synchronized (this) {
+                job = next();
+
+                if (job == null) {
+                    return;
+                }
+
+                ++running;
+                addHostCount(job.host, 1);
+
+                long wait = System.nanoTime() - job.enqueueTime;
+
+                ++startedCount;
+                totalWait += wait;
+                maxWait = Math.max(maxWait, wait);
+            }
+
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        job.runnable.run();
+                    } finally {
+                        synchronized (PriorityScheduler.this) {
+                            --running;
+                            addHostCount(job.host, -1);
+                        }
+
+                        dispatch();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The next job which can run, removed from the queue, or null.
+     */
+    private @Nullable Job next() {
+        if (running >= maxThreads) {
+            return null;
+        }
+
+        Iterator<Job> iter = queue.iterator();
+
+        while (iter.hasNext()) {
+            Job job = iter.next();
+
+            if (hostCount(job.host) < maxPerHost) {
+                iter.remove();
+                return job;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * @return The number of tasks waiting to run.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of tasks running now.
+     */
+    public synchronized int getRunningCount() {
+        return running;
+    }
+
+    /**
+     * @return The number of tasks which have been started.
+     */
+    public synchronized long getStartedCount() {
+        return startedCount;
+    }
+
+    /**
+     * @param unit The unit to return the time in.
+     * @return The average time tasks have waited in the queue.
+     */
+    public synchronized long getAverageQueueWait(TimeUnit unit) {
+        if (startedCount == 0) {
+            return 0;
+        }
+
+        return unit.convert(totalWait / startedCount, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit The unit to return the time in.
+     * @return The longest time a task has waited in the queue.
+     */
+    public synchronized long getMaxQueueWait(TimeUnit unit) {
+        return unit.convert(maxWait, TimeUnit.NANOSECONDS);
+    }
+}
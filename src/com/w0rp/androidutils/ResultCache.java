@@ -0,0 +1,212 @@
+package com.w0rp.androidutils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import android.content.ComponentCallbacks2;
+import android.content.res.Configuration;
+
+/**
+ * This class is a size bounded cache of parsed results in memory, which can
+ * be shared between loaders in a process. Each result is stored with the
+ * validator it was loaded with, so an entry is only returned while it
+ * matches the validator for the current data.
+ *
+ * Every entry has a weight, such as an estimate of its size in bytes, and
+ * the least recently used entries are removed when the total weight goes
+ * over the maximum weight.
+ *
+ * The cache can be registered with Context.registerComponentCallbacks()
+ * to release memory when the system is low on memory.
+ *
+ * All methods are safe to call from any thread.
+ */
+public class ResultCache implements ComponentCallbacks2 {
+    private static final class Entry {
+        private final @Nullable String validator;
+        private final Object value;
+        private final long weight;
+
+        Entry(@Nullable String validator, Object value, long weight) {
+            this.validator = validator;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    // The map is kept in access order, so the first entry is the least
+    // recently used.
+    private final LinkedHashMap<String, Entry> entryMap =
+        new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long maxWeight;
+    private long weight = 0;
+    private long hitCount = 0;
+    private long missCount = 0;
+    private long evictionCount = 0;
+
+    /**
+     * @param maxWeight The maximum total weight of entries.
+     */
+    public ResultCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+    }
+
+    /**
+     * Look up a result.
+     *
+     * @param key The key for the result.
+     * @param validator The validator the result must have been stored with.
+     * @return The result, or null if there is no matching result.
+     */
+    public synchronized @Nullable Object get(
+    String key, @Nullable String validator) {
+        Entry entry = entryMap.get(key);
+
+        if (entry == null || validator == null
+        || !validator.equals(entry.validator)) {
+            ++missCount;
+            return null;
+        }
+
+        ++hitCount;
+
+        return entry.value;
+    }
+
+    /**
+     * Store a result, replacing any result for the same key.
+     *
+     * Results heavier than the maximum weight will not be stored.
+     *
+     * @param key The key for the result.
+     * @param validator The validator for the result, such as an ETag.
+     * @param value The result.
+     * @param valueWeight The weight of the result, such as its size.
+     */
+    public synchronized void put(String key, @Nullable String validator,
+    Object value, long valueWeight) {
+        remove(key);
+
+        if (valueWeight > maxWeight) {
+            return;
+        }
+
+        entryMap.put(key, new Entry(validator, value, valueWeight));
+        weight += valueWeight;
+
+        trimToWeight(maxWeight);
+    }
+
+    /**
+     * Remove a result.
+     *
+     * @param key The key for the result.
+     */
+    public synchronized void remove(String key) {
+        Entry entry = entryMap.remove(key);
+
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * Remove the least recently used results until the total weight is
+     * at most the given weight.
+     *
+     * @param targetWeight The weight to trim the cache to.
+     */
+    public synchronized void trimToWeight(long targetWeight) {
+        Iterator<Map.Entry<String, Entry>> iter =
+            entryMap.entrySet().iterator();
+
+        while (weight > targetWeight && iter.hasNext()) {
+            weight -= iter.next().getValue().weight;
+            iter.remove();
+            ++evictionCount;
+        }
+    }
+
+    /**
+     * Remove every result.
+     */
+    public synchronized void clear() {
+        entryMap.clear();
+        weight = 0;
+    }
+
+    /**
+     * Change the maximum weight, removing results if needed.
+     *
+     * @param maxWeight The new maximum weight.
+     */
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        trimToWeight(maxWeight);
+    }
+
+    /**
+     * @return The maximum total weight of entries.
+     */
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    /**
+     * @return The total weight of the entries in the cache.
+     */
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return The number of entries in the cache.
+     */
+    public synchronized int size() {
+        return entryMap.size();
+    }
+
+    /**
+     * @return The number of lookups which found a result.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * @return The number of lookups which found no result.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * @return The number of results removed to keep within the bounds.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE
+        || level == TRIM_MEMORY_RUNNING_CRITICAL) {
+            // Memory is very tight, so let everything go.
+            clear();
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trimToWeight(getMaxWeight() / 2);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        clear();
+    }
+
+    @Override
+    public void onConfigurationChanged(@Nullable Configuration newConfig) {
+    }
+}
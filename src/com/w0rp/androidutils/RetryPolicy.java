@@ -0,0 +1,175 @@
+package com.w0rp.androidutils;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class decides when failed requests should be retried, and how long
+ * to wait before each retry. Delays grow exponentially with each attempt,
+ * and are randomised with jitter so many clients don't retry in lockstep.
+ *
+ * Only failures which might succeed when tried again are retried.
+ * See isRetryable(failure).
+ *
+ * NetworkLoader waits for each delay on the thread running the loader, so
+ * with the default serial executor, every other loader waits as well.
+ * Loaders which retry should run on an executor which runs tasks in
+ * parallel, such as a PriorityScheduler, or use short delays.
+ *
+ * Policies count the retries made with them, so they can be shared
+ * between loaders to measure retries across an application.
+ */
+public class RetryPolicy {
+    /**
+     * A policy which never retries.
+     */
+    public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double jitter;
+    private final Random random = new Random();
+    private final AtomicLong retryCount = new AtomicLong();
+    private final AtomicLong exhaustedCount = new AtomicLong();
+
+    /**
+     * @param maxAttempts The maximum number of attempts, including the
+     *     first attempt.
+     * @param baseDelay The delay before the first retry in milliseconds.
+     * @param maxDelay The maximum delay before a retry in milliseconds.
+     * @param jitter The fraction of each delay which is randomised,
+     *     from 0 for no jitter to 1 for a delay anywhere up to the limit.
+     */
+    public RetryPolicy(
+    int maxAttempts, long baseDelay, long maxDelay, double jitter) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be >= 1");
+        }
+
+        if (jitter < 0 || jitter > 1) {
+            throw new IllegalArgumentException("jitter must be in [0, 1]");
+        }
+
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+        this.jitter = jitter;
+    }
+
+    /**
+     * @return The maximum number of attempts, including the first attempt.
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Decide if a failure is worth retrying, based on its response code and
+     * exception. Server errors, timeouts, rate limiting and connection
+     * failures are retried, including connections failing while the body
+     * is read. Other client errors and parsing errors are not.
+     *
+     * @param failure A request failure.
+     * @return true if the request could succeed if made again.
+     */
+    public boolean isRetryable(NetworkFailure failure) {
+        int code = failure.getResponseCode();
+
+        if (code == 408 || code == 429) {
+            return true;
+        }
+
+        return isHostFailure(failure);
+    }
+
+    /**
+     * Decide if a failure was caused by the host, or the connection to the
+     * host, rather than the request or the data.
+     *
+     * @param failure A request failure.
+     * @return true for server errors and connection failures.
+     */
+    public static boolean isHostFailure(NetworkFailure failure) {
+        if (failure.isTransportFailure()) {
+            // The connection failed part way through the response.
+            return true;
+        }
+
+        int code = failure.getResponseCode();
+
+        if (code >= 500 && code != Net.Response.GENERIC_FAILURE) {
+            return true;
+        }
+
+        // Without a response, an IOException means we couldn't connect,
+        // or the connection failed.
+        return code == Net.Response.GENERIC_FAILURE
+            && failure.getException() instanceof IOException
+            && !(failure.getException()
+                instanceof HostCircuitBreaker.OpenException);
+    }
+
+    /**
+     * Decide if a request should be tried again.
+     *
+     * @param failure The failure for the last attempt.
+     * @param attempt The number of attempts made so far, starting from 1.
+     * @return true if another attempt should be made.
+     */
+    public boolean shouldRetry(NetworkFailure failure, int attempt) {
+        if (!isRetryable(failure)) {
+            return false;
+        }
+
+        if (attempt >= maxAttempts) {
+            if (maxAttempts > 1) {
+                exhaustedCount.incrementAndGet();
+            }
+
+            return false;
+        }
+
+        retryCount.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * @param attempt The number of attempts made so far, starting from 1.
+     * @return The time to wait before the next attempt in milliseconds.
+     */
+    public long getDelay(int attempt) {
+        // Double the delay for each attempt, without overflowing.
+        int shift = Math.min(attempt - 1, 30);
+        long delay = Math.min(maxDelay, baseDelay << shift);
+
+        if (delay <= 0) {
+            return 0;
+        }
+
+        double randomPart;
+
+        synchronized (random) {
+            randomPart = random.nextDouble();
+        }
+
+        return (long) (delay * (1 - jitter) + delay * jitter * randomPart);
+    }
+
+    /**
+     * @return The number of retries made with this policy.
+     */
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return The number of requests which still failed after the maximum
+     *     number of attempts.
+     */
+    public long getExhaustedCount() {
+        return exhaustedCount.get();
+    }
+}
@@ -0,0 +1,296 @@
+package com.w0rp.androidutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * This class downloads large files as several byte ranges at once, which
+ * can use more of the available bandwidth than a single connection on
+ * links with high latency.
+ *
+ * The server is first asked for the length of the file with a HEAD request.
+ * If the server accepts byte ranges, the file is split into segments which
+ * are fetched at the same time, and each segment is written at its offset
+ * in a file of the full length. Otherwise, or if the file is too small to
+ * be worth splitting, the file is downloaded with a single FileDownloader.
+ *
+ * Segments are requested with If-Range, so if the file changes during the
+ * download, the download fails instead of mixing two versions of the file.
+ */
+public class SegmentedDownloader {
+    private static final String SEGMENTS_SUFFIX = ".segments";
+
+    private final HttpClient client;
+    private final int segmentCount;
+    private final long minSegmentSize;
+    private final @Nullable FileDownloader.ProgressListener listener;
+    private final @Nullable FileRotator rotator;
+
+    /**
+     * Create a downloader using the shared client, with segments of at
+     * least 1MiB, no progress listener and no FileRotator.
+     *
+     * The shared client allows PooledHTTPClient.DEFAULT_MAX_PER_ROUTE
+     * connections to a host, so more segments than that will wait.
+     *
+     * @param segmentCount The maximum number of segments to fetch at once.
+     */
+    public SegmentedDownloader(int segmentCount) {
+        this(Net.sharedClient().getClient(), segmentCount, 1024 * 1024,
+            null, null);
+    }
+
+    /**
+     * @param client The client to make requests with. The client should
+     *     allow at least segmentCount connections to a host.
+     * @param segmentCount The maximum number of segments to fetch at once.
+     * @param minSegmentSize The smallest size in bytes for a segment.
+     * @param listener A listener for progress updates, or null.
+     *     Progress is reported from several threads at once.
+     * @param rotator A FileRotator to add finished files to, or null.
+     */
+    public SegmentedDownloader(HttpClient client, int segmentCount,
+    long minSegmentSize, @Nullable FileDownloader.ProgressListener listener,
+    @Nullable FileRotator rotator) {
+        if (segmentCount < 1) {
+            throw new IllegalArgumentException("segmentCount must be >= 1");
+        }
+
+        this.client = client;
+        this.segmentCount = segmentCount;
+        this.minSegmentSize = Math.max(1, minSegmentSize);
+        this.listener = listener;
+        this.rotator = rotator;
+    }
+
+    /**
+     * Download a URI to a file. The file will be replaced if it already
+     * exists.
+     *
+     * This method blocks, so it MUST NOT be called from the UI thread.
+     *
+     * @param uri The URI to download.
+     * @param file The file to write to.
+     * @return A description of the finished download.
+     * @throws IOException If the download fails or is incomplete.
+     */
+    public FileDownloader.Download download(URI uri, File file)
+    throws IOException {
+        HttpHead probe = new HttpHead(uri);
+        probe.setHeader("Accept-Encoding", "identity");
+
+        HttpResponse response = client.execute(probe);
+        HttpEntity probeEntity = response.getEntity();
+
+        if (probeEntity != null) {
+            probeEntity.consumeContent();
+        }
+
+        Header acceptRanges = response.getFirstHeader("Accept-Ranges");
+        Header contentLength = response.getFirstHeader("Content-Length");
+        String validator = FileDownloader.validator(response);
+        long total = -1;
+
+        try {
+            if (contentLength != null) {
+                total = Long.parseLong(
+                    Coerce.def(contentLength.getValue()).trim());
+            }
+        } catch (NumberFormatException e) { }
+
+        int segments = (int) Math.min(segmentCount,
+            total > 0 ? total / minSegmentSize : 1);
+
+        if (response.getStatusLine().getStatusCode() != 200
+        || acceptRanges == null
+        || !Coerce.def(acceptRanges.getValue()).contains("bytes")
+        || validator == null || total <= 0 || segments < 2) {
+            // Fall back on a single stream.
+            return new FileDownloader(client, listener, rotator)
+                .download(uri, file);
+        }
+
+        return downloadSegments(uri, file, validator, total, segments);
+    }
+
+    private FileDownloader.Download downloadSegments(final URI uri, File file,
+    final String validator, final long total, int segments)
+    throws IOException {
+        File segmentsFile = new File(file.getPath() + SEGMENTS_SUFFIX);
+        RandomAccessFile out = new RandomAccessFile(segmentsFile, "rw");
+        ExecutorService pool = Executors.newFixedThreadPool(segments);
+        boolean complete = false;
+
+        try {
+            // Allocate the whole file up front, so each segment can be
+            // written at its own offset.
+            out.setLength(total);
+
+            final FileChannel channel = Coerce.notnull(out.getChannel());
+            final AtomicLong written = new AtomicLong();
+            List<Future<Long>> futureList = new ArrayList<Future<Long>>();
+            long segmentSize = total / segments;
+
+            for (int i = 0; i < segments; ++i) {
+                final long start = i * segmentSize;
+                final long end = i == segments - 1
+                    ? total - 1
+                    : start + segmentSize - 1;
+
+                futureList.add(pool.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws IOException {
+                        return fetchSegment(uri, validator, channel, start,
+                            end, total, written);
+                    }
+                }));
+            }
+
+            long transferred = 0;
+
+            for (Future<Long> future : futureList) {
+                transferred += future.get();
+            }
+
+            if (transferred != total || channel.size() != total) {
+                throw new IOException("Incomplete download: " + transferred
+                    + " of " + total + " bytes");
+            }
+
+            IO.close(out);
+
+            // The rename replaces any old file in one step.
+            if (!segmentsFile.renameTo(file)) {
+                throw new IOException(
+                    "Could not move the download to " + file);
+            }
+
+            complete = true;
+
+            if (rotator != null) {
+                rotator.add(file);
+            }
+
+            return new FileDownloader.Download(file, total, transferred,
+                false);
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("The download was interrupted.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+
+            throw new IOException("A segment failed: " + cause);
+        } finally {
+            // Stop any other segments still running.
+            pool.shutdownNow();
+            IO.close(out);
+
+            if (!complete) {
+                segmentsFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Fetch a byte range and write it at its offset in the file.
+     *
+     * @return The number of bytes written.
+     */
+    private long fetchSegment(URI uri, String validator, FileChannel channel,
+    long start, long end, long total, AtomicLong written)
+    throws IOException {
+        HttpGet request = new HttpGet(uri);
+        request.setHeader("Accept-Encoding", "identity");
+        request.setHeader("Range", "bytes=" + start + "-" + end);
+        request.setHeader("If-Range", validator);
+
+        HttpResponse response = client.execute(request);
+        HttpEntity entity = response.getEntity();
+        InputStream in = entity != null
+            ? entity.getContent()
+            : IO.emptyInputStream();
+        BufferPool pool = BufferPool.shared();
+        byte[] buffer = pool.acquire();
+        long position = start;
+        boolean read = false;
+
+        try {
+            int code = response.getStatusLine().getStatusCode();
+
+            if (code != 206) {
+                // A 200 means the file changed since we asked for its length.
+                throw new IOException(
+                    "Expected a partial response, got: " + code);
+            }
+
+            long[] range = FileDownloader.parseContentRange(
+                response.getFirstHeader("Content-Range"));
+
+            if (range[0] != start) {
+                // Writing another range at this offset would corrupt the file.
+                throw new IOException("Unexpected Content-Range: "
+                    + range[0] + " instead of " + start);
+            }
+
+            int len;
+            while (position <= end && (len = in.read(buffer)) != -1) {
+                ByteBuffer wrapped = ByteBuffer.wrap(buffer, 0,
+                    (int) Math.min(len, end - position + 1));
+
+                // Positional writes are safe from several threads at once.
+                while (wrapped.hasRemaining()) {
+                    position += channel.write(wrapped, position);
+                }
+
+                long done = written.addAndGet(wrapped.limit());
+
+                if (listener != null) {
+                    listener.onProgress(done, total);
+                }
+
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException(
+                        "The download was interrupted.");
+                }
+            }
+
+            read = true;
+        } finally {
+            if (!read) {
+                // Closing a pooled stream reads the rest of the body, so
+                // drop the connection instead.
+                request.abort();
+            }
+
+            pool.release(buffer);
+            IO.close(in);
+        }
+
+        return position - start;
+    }
+}
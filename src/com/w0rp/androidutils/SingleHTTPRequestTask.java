@@ -22,6 +22,9 @@ extends SingleAsyncTask<HttpUriRequest, Void, String> {
             } catch (IOException e) {
                 e.printStackTrace();
             }
+        } else {
+            // Release the connection back to the pool.
+            response.close();
         }
 
         return null;